@@ -1,8 +1,15 @@
 package knitty.javaimpl;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadFactory;
 
 import clojure.lang.AFn;
 import clojure.lang.Var;
@@ -13,6 +20,18 @@ public abstract class ExecutionPool {
     public abstract void fork(Runnable r);
     public abstract void run(AFn fn);
 
+    /** Called when yank context is cancelled. */
+    public void cancel() {
+    }
+
+    /**
+     * Task, which realizes a deferred.  Cancelled pool calls 'cancel' instead of running the task,
+     * so dependents of the deferred are not left waiting.
+     */
+    public interface Cancellable {
+        void cancel(CancellationException e);
+    }
+
     private ExecutionPool() {}
 
     public static ExecutionPool adapt(Executor executor) {
@@ -20,7 +39,9 @@ public abstract class ExecutionPool {
     }
 
     public static ExecutionPool adapt(Executor executor, Object bframe) {
-        if (executor instanceof ForkJoinPool) {
+        if (executor instanceof VirtualThreadExecutor) {
+            return new VirtualThreadPool(bframe);
+        } else if (executor instanceof ForkJoinPool) {
             return new ForkJoinPoolPool((ForkJoinPool) executor, bframe);
         } else if (executor != null) {
             return new ExecutorPool(executor, bframe);
@@ -125,7 +146,7 @@ public abstract class ExecutionPool {
                 try {
                     fn.invoke();
                 } catch (Throwable e) {
-                    KDeferred.logError(e, "uncaugh exception in fj-task");
+                    KDeferred.logError(e, "uncaught exception in fj-task");
                 } finally {
                     popBFrame(oldf);
                 }
@@ -175,6 +196,155 @@ public abstract class ExecutionPool {
         }
     }
 
+    /**
+     * Marker executor, yanks are run on virtual threads (platform threads when virtual ones are not supported).
+     */
+    public static final class VirtualThreadExecutor implements Executor {
+
+        public static final VirtualThreadExecutor INSTANCE = new VirtualThreadExecutor();
+
+        private VirtualThreadExecutor() {}
+
+        @Override
+        public void execute(Runnable command) {
+            VirtualThreadPool.FACTORY.newThread(command).start();
+        }
+
+        public static boolean isVirtualThreadsSupported() {
+            return VirtualThreadPool.IS_VIRTUAL != null;
+        }
+
+        @Override
+        public String toString() {
+            return "#knitty/VirtualThreadExecutor";
+        }
+    }
+
+    static final class VirtualThreadPool extends ExecutionPool {
+
+        static final ThreadFactory FACTORY;
+        static final MethodHandle IS_VIRTUAL;
+
+        static {
+            // compiled for java 17 - lookup virtual threads api reflectively
+            ThreadFactory f;
+            MethodHandle isv;
+            try {
+                MethodHandles.Lookup l = MethodHandles.publicLookup();
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> bcls = Class.forName("java.lang.Thread$Builder");
+                f = (ThreadFactory) bcls.getMethod("factory").invoke(builder);
+                isv = l.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                f = r -> {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                };
+                isv = null;
+            }
+            FACTORY = f;
+            IS_VIRTUAL = isv;
+        }
+
+        private final class FnThread implements Runnable {
+
+            private final AFn fn;
+            private final Runnable r;
+
+            private FnThread(AFn fn, Runnable r) {
+                this.fn = fn;
+                this.r = r;
+            }
+
+            @Override
+            public void run() {
+                Thread t = Thread.currentThread();
+                threads.add(t);
+                Object oldf = pushBFrame(bframe);
+                try {
+                    if (cancelled) {
+                        drop(fn != null ? fn : r);
+                    } else if (fn != null) {
+                        fn.invoke();
+                    } else {
+                        r.run();
+                    }
+                } catch (Throwable e) {
+                    KDeferred.logError(e, "uncaught exception in virtual thread");
+                } finally {
+                    popBFrame(oldf);
+                    threads.remove(t);
+                }
+            }
+        }
+
+        private final Object bframe;
+        private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled;
+
+        public VirtualThreadPool(Object bframe) {
+            this.bframe = bframe;
+        }
+
+        // only threads started by this pool, other virtual threads may run other yanks
+        private boolean insidePool() {
+            return threads.contains(Thread.currentThread());
+        }
+
+        // tasks without a deferred are dropped, others are failed
+        private static void drop(Object task) {
+            if (task instanceof Cancellable) {
+                ((Cancellable) task).cancel(new RevokeException("execution pool is cancelled"));
+            }
+        }
+
+        @Override
+        public void fork(AFn fn) {
+            if (cancelled) {
+                drop(fn);
+            } else {
+                FACTORY.newThread(new FnThread(fn, null)).start();
+            }
+        }
+
+        @Override
+        public void fork(Runnable r) {
+            if (cancelled) {
+                drop(r);
+            } else {
+                FACTORY.newThread(new FnThread(null, r)).start();
+            }
+        }
+
+        @Override
+        public void run(AFn fn) {
+            if (insidePool()) {
+                // virtual threads are cheap to block, no need to switch threads
+                Object oldf = pushBFrame(bframe);
+                try {
+                    fn.invoke();
+                } finally {
+                    popBFrame(oldf);
+                }
+            } else {
+                fork(fn);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // pool may be cancelled by one of its threads (e.g. by a failed yarn)
+            Thread ct = Thread.currentThread();
+            for (Thread t : threads) {
+                if (t != ct) {
+                    t.interrupt();
+                }
+            }
+        }
+    }
+
     private static Object pushBFrame(Object bframe) {
         if (bframe == null) {
             return null;
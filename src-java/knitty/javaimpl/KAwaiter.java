@@ -3,8 +3,11 @@ package knitty.javaimpl;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
 
 import clojure.lang.AFn;
+import clojure.lang.ArraySeq;
+import clojure.lang.LazilyPersistentVector;
 import manifold.deferred.IDeferred;
 
 public final class KAwaiter {
@@ -51,6 +54,119 @@ public final class KAwaiter {
         }
     }
 
+    private static final class Zip {
+
+        private static final VarHandle ZCNT;
+        static {
+            try {
+                MethodHandles.Lookup l = MethodHandles.lookup();
+                ZCNT = l.findVarHandle(Zip.class, "cnt", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final Object[] vals;
+        final boolean asSeq;
+        final KDeferred res = KDeferred.create();
+
+        @SuppressWarnings("FieldMayBeFinal")
+        private int cnt = Integer.MAX_VALUE;
+
+        Zip(Object[] vals, boolean asSeq) {
+            this.vals = vals;
+            this.asSeq = asSeq;
+        }
+
+        boolean failed() {
+            return (int) ZCNT.getOpaque(this) < 0;
+        }
+
+        void done(int pending) {
+            int n = Integer.MAX_VALUE - pending;
+            if ((int) ZCNT.getAndAdd(this, -n) == n) {
+                complete();
+            }
+        }
+
+        void complete() {
+            res.success(asSeq ? ArraySeq.create(vals) : LazilyPersistentVector.createOwning(vals), null);
+        }
+    }
+
+    private static final class ZipLs extends KDeferred.AListener {
+
+        private final Zip zip;
+        private final int idx;
+
+        ZipLs(Zip zip, int idx) {
+            this.zip = zip;
+            this.idx = idx;
+        }
+
+        @Override
+        public void success(Object x) {
+            zip.vals[idx] = x;
+            if ((int) Zip.ZCNT.getAndAdd(zip, -1) == 1) {
+                zip.complete();
+            }
+        }
+
+        @Override
+        public void error(Object e) {
+            if ((int) Zip.ZCNT.getAndSet(zip, -1) > 0) {
+                zip.res.error(e, null);
+            }
+        }
+    }
+
+    private static final class AltLs extends KDeferred.AListener {
+
+        private final KDeferred res;
+
+        AltLs(KDeferred res) {
+            this.res = res;
+        }
+
+        @Override
+        public void success(Object x) {
+            res.success(x, null);
+        }
+
+        @Override
+        public void error(Object e) {
+            res.error(e, null);
+        }
+    }
+
+    private static final class RevokeLosers extends KDeferred.AListener {
+
+        private final Object[] ds;
+
+        RevokeLosers(Object[] ds) {
+            this.ds = ds;
+        }
+
+        @Override
+        public void success(Object x) {
+            revoke();
+        }
+
+        @Override
+        public void error(Object e) {
+            revoke();
+        }
+
+        private void revoke() {
+            for (Object d : ds) {
+                // claimed deferreds are not touched, 'revoke'-d ones call their cancellers
+                if (d instanceof KDeferred && !((KDeferred) d).realized()) {
+                    ((KDeferred) d).error(RevokeException.DEFERRED_REVOKED, null);
+                }
+            }
+        }
+    }
+
     private final AFn ls;
     private int acnt = Integer.MAX_VALUE;
 
@@ -119,6 +235,67 @@ public final class KAwaiter {
         return ka.await();
     }
 
+    /**
+     * Returns deferred realized with vector (or seq when 'asSeq') of values of all deferreds,
+     * array is owned by the result and filled with values in place.
+     */
+    public static KDeferred zipArr(Object[] ds, boolean asSeq) {
+        Zip z = new Zip(ds, asSeq);
+        int pending = 0;
+        for (int i = 0; i < ds.length && !z.failed(); ++i) {
+            Object d = ds[i];
+            if (d instanceof IDeferred) {
+                KDeferred kd = (d instanceof KDeferred) ? (KDeferred) d : KDeferred.wrapDeferred((IDeferred) d);
+                if (kd.succeeded == 1) {
+                    ds[i] = kd.getRaw();
+                } else {
+                    pending += 1;
+                    kd.listen(new ZipLs(z, i));
+                }
+            }
+        }
+        z.done(pending);
+        return z.res;
+    }
+
+    /**
+     * Returns deferred realized with the first realized value.  Already realized values are
+     * picked randomly.  When 'revokeLosers' is set, unrealized and unclaimed deferreds are
+     * revoked after the result is realized.
+     */
+    public static KDeferred altArr(Object[] ds, boolean revokeLosers) {
+        if (ds.length == 0) {
+            throw new IllegalArgumentException("alt requires at least one value");
+        }
+        KDeferred res = KDeferred.create();
+        if (revokeLosers) {
+            res.listen(new RevokeLosers(ds));
+        }
+
+        // reservoir sampling, no shuffling of the array
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int k = 0;
+        int c = -1;
+        for (int i = 0; i < ds.length; ++i) {
+            Object d = ds[i];
+            if (!(d instanceof IDeferred) || ((IDeferred) d).realized()) {
+                k += 1;
+                if (rnd.nextInt(k) == 0) {
+                    c = i;
+                }
+            }
+        }
+        if (c != -1) {
+            res.chain(ds[c], null);
+            return res;
+        }
+
+        for (int i = 0; i < ds.length && !res.realized(); ++i) {
+            KDeferred.wrap(ds[i]).listen(new AltLs(res));
+        }
+        return res;
+    }
+
     public static void doUnwrapArr(Object[] ds) {
         for (int i = 0; i < ds.length; ++i) {
             Object d = ds[i];
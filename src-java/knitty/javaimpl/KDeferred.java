@@ -3,13 +3,19 @@ package knitty.javaimpl;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.lang.ref.Cleaner;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 import clojure.lang.AFn;
@@ -51,7 +57,16 @@ public class KDeferred
             if ((x instanceof UnleakableException) || !(x instanceof Throwable)) {
                 return new ErrBoxUnleakable(x);
             } else {
+                return leakable(x);
+            }
+        }
+
+        static ErrBox leakable(Object x) {
+            int m = LEAK_DETECTION;
+            if (m == 1 || (m > 1 && ThreadLocalRandom.current().nextInt(m) == 0)) {
                 return new ErrBoxLeakable(x);
+            } else {
+                return new ErrBoxUnleakable(x);
             }
         }
     }
@@ -97,17 +112,31 @@ public class KDeferred
 
         private static final BlockingQueue<Object> ELD_LEAKED_ERRORS = new ArrayBlockingQueue<>(256);
 
+        // leaks after the first one of each class are reported by a periodic per-class summary
+        private static final long ELD_SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
         @SuppressWarnings("CallToPrintStackTrace")
         public static final Thread ELD_LOGGER = new Thread(() -> {
+        long lastSummary = System.nanoTime();
         while (!Thread.interrupted()) {
             Object e;
             try {
-                e = ELD_LEAKED_ERRORS.take();
+                e = ELD_LEAKED_ERRORS.poll(ELD_SUMMARY_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
             } catch (InterruptedException ex) {
                 return;
             }
             try {
-                logWarn(e, "unconsumed deferred in error state");
+                if (e != null) {
+                    logWarn(e, "unconsumed deferred in error state");
+                }
+                long now = System.nanoTime();
+                if (now - lastSummary >= ELD_SUMMARY_INTERVAL_NANOS) {
+                    lastSummary = now;
+                    String summary = unreportedLeaks();
+                    if (summary != null) {
+                        logWarn(null, "unconsumed deferreds in error state (per error class): " + summary);
+                    }
+                }
             } catch (Exception e1) {
                 e1.printStackTrace();
             }
@@ -122,6 +151,35 @@ public class KDeferred
         private static final Cleaner ELD_CLEANER =
             Cleaner.create(r -> new Thread(r, "knitty-error-leak-detector"));
 
+        // [total, unreported] amounts of detected leaks per class of error, guarded by itself;
+        // classes are weakly referenced, so counters don't pin classes of unloaded code
+        private static final WeakHashMap<Class<?>, long[]> ELD_COUNTERS = new WeakHashMap<>();
+
+        static IPersistentMap leakedErrors() {
+            IPersistentMap r = PersistentArrayMap.EMPTY;
+            synchronized (ELD_COUNTERS) {
+                for (Map.Entry<Class<?>, long[]> e : ELD_COUNTERS.entrySet()) {
+                    r = r.assoc(e.getKey(), e.getValue()[0]);
+                }
+            }
+            return r;
+        }
+
+        private static String unreportedLeaks() {
+            StringBuilder sb = null;
+            synchronized (ELD_COUNTERS) {
+                for (Map.Entry<Class<?>, long[]> e : ELD_COUNTERS.entrySet()) {
+                    long[] c = e.getValue();
+                    if (c[1] != 0) {
+                        sb = sb == null ? new StringBuilder() : sb.append(", ");
+                        sb.append(e.getKey().getName()).append(" x").append(c[1]);
+                        c[1] = 0;
+                    }
+                }
+            }
+            return sb == null ? null : sb.toString();
+        }
+
         private static final VarHandle CONSUMED;
 
         static {
@@ -145,7 +203,21 @@ public class KDeferred
             Object e = this.err;
             if (!isConsumed()) {
                 this.getError();
-                ELD_LEAKED_ERRORS.offer(e);
+                boolean first;
+                synchronized (ELD_COUNTERS) {
+                    long[] c = ELD_COUNTERS.get(e.getClass());
+                    first = c == null;
+                    if (first) {
+                        ELD_COUNTERS.put(e.getClass(), new long[] {1, 0});
+                    } else {
+                        c[0]++;
+                        c[1]++;
+                    }
+                }
+                // first leak of each class is logged, others go to the summary
+                if (first) {
+                    ELD_LEAKED_ERRORS.offer(e);
+                }
             }
         }
 
@@ -186,6 +258,9 @@ public class KDeferred
 
         public AListener next;
 
+        // amount of plain listeners up to the nearest chunk (including this one)
+        int depth;
+
         public abstract void success(Object x);
         public abstract void error(Object e);
 
@@ -304,13 +379,13 @@ public class KDeferred
                 dest.fireError(e);
                 return;
             }
-            dest.chain(t);
+            chainTail(dest, t);
         }
 
         @Override
         public void error(Object e) {
             if (errFn == null) {
-                dest.fireError(e);
+                errorTail(dest, e);
             } else {
                 Object t;
                 try {
@@ -320,7 +395,7 @@ public class KDeferred
                     dest.fireError(e1);
                     return;
                 }
-                dest.chain(t);
+                chainTail(dest, t);
             }
         }
 
@@ -378,21 +453,61 @@ public class KDeferred
         }
     }
 
-    private static class Cdl extends AListener {
-        private final CountDownLatch cdl;
+    private static final class Waiter extends AListener {
+
+        private final Thread thread;
 
-        Cdl(CountDownLatch cdl) {
-            this.cdl = cdl;
+        Waiter(Thread thread) {
+            this.thread = thread;
         }
 
         @Override
         public void success(Object x) {
-            cdl.countDown();
+            LockSupport.unpark(thread);
         }
 
         @Override
         public void error(Object e) {
-            cdl.countDown();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static final class TimeoutLs extends AListener implements Runnable {
+
+        private final KDeferred d;
+        private final long ms;
+        private final Object value;
+        private final boolean hasValue;
+        private KTimer.Timeout timeout;
+
+        TimeoutLs(KDeferred d, long ms, Object value, boolean hasValue) {
+            this.d = d;
+            this.ms = ms;
+            this.value = value;
+            this.hasValue = hasValue;
+        }
+
+        @Override
+        public void run() {
+            if (TOKEN.getOpaque(d) != null) {
+                // claimed deferred is realized by its owner only
+                return;
+            }
+            if (hasValue) {
+                d.success(value, null);
+            } else {
+                d.error(new TimeoutException("timed out after " + ms + " milliseconds"), null);
+            }
+        }
+
+        @Override
+        public void success(Object x) {
+            timeout.cancel();
+        }
+
+        @Override
+        public void error(Object e) {
+            timeout.cancel();
         }
     }
 
@@ -408,12 +523,22 @@ public class KDeferred
 
         @Override
         public void success(Object x) {
-            kd.fireValue(x, token);
+            Trampoline t = Trampoline.tailCall();
+            try {
+                kd.fireValue(x, token);
+            } finally {
+                t.tail = false;
+            }
         }
 
         @Override
         public void error(Object x) {
-            kd.fireError(x, token);
+            Trampoline t = Trampoline.tailCall();
+            try {
+                kd.fireError(x, token);
+            } finally {
+                t.tail = false;
+            }
         }
 
         @Override
@@ -486,6 +611,143 @@ public class KDeferred
         }
     }
 
+    /**
+     * Flattened part of the listeners list, listeners are stored in the order of firing.
+     */
+    private static final class ListenerChunk extends AListener {
+
+        private final AListener[] ls;
+
+        // amount of listeners in this and all following chunks
+        private final int count;
+
+        ListenerChunk(AListener[] ls, ListenerChunk next) {
+            this.ls = ls;
+            this.next = next;
+            this.count = ls.length + (next == null ? 0 : next.count);
+        }
+
+        @Override
+        public void success(Object x) {
+            for (AListener l : ls) {
+                try {
+                    l.success(x);
+                } catch (Throwable e) {
+                    logError(e, String.format("error in deferred success-handler: %s", l));
+                }
+            }
+        }
+
+        @Override
+        public void error(Object e) {
+            for (AListener l : ls) {
+                try {
+                    l.error(e);
+                } catch (Throwable e1) {
+                    logError(e1, String.format("error in deferred error-handler: %s", l));
+                }
+            }
+        }
+
+        Dl findDl(Object listener) {
+            for (AListener l : ls) {
+                if (l instanceof Dl) {
+                    Dl dl = (Dl) l;
+                    if (dl.ls == listener && dl.acquireForCancel()) {
+                        return dl;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class ForkedChunk implements Runnable {
+
+        private final ListenerChunk chunk;
+        private final Object value;
+        private final boolean success;
+
+        ForkedChunk(ListenerChunk chunk, Object value, boolean success) {
+            this.chunk = chunk;
+            this.value = value;
+            this.success = success;
+        }
+
+        @Override
+        public void run() {
+            if (success) {
+                chunk.success(value);
+            } else {
+                chunk.error(value);
+            }
+        }
+    }
+
+    /**
+     * Per-thread state of listeners notification.  Deferreds realized by internal listeners
+     * as a tail call (binds & chains propagating the value) fire their listeners recursively
+     * until 'TRAMPOLINE_DEPTH' is reached, deeper notifications are queued and fired iteratively
+     * by the frame which started the chain, so long chains of binds don't overflow the stack.
+     * Any other realization (e.g. by a user callback) fires all listeners, including the queued
+     * ones, before it returns.
+     */
+    private static final class Trampoline {
+
+        private int depth;
+        private boolean tail;
+        private ArrayDeque<Object> queue; // triples of [node, value, success?]
+
+        static Trampoline tailCall() {
+            Trampoline t = TRAMPOLINE.get();
+            t.tail = true;
+            return t;
+        }
+
+        void push(AListener node, Object x, boolean success) {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+            }
+            queue.addLast(node);
+            queue.addLast(x);
+            queue.addLast(success ? Boolean.TRUE : Boolean.FALSE);
+        }
+
+        void drain() {
+            ArrayDeque<Object> q = queue;
+            if (q == null) {
+                return;
+            }
+            while (!q.isEmpty()) {
+                AListener node = (AListener) q.pollFirst();
+                Object x = q.pollFirst();
+                boolean success = (Boolean) q.pollFirst();
+                notify0(node, x, success);
+            }
+        }
+    }
+
+    private static final int TRAMPOLINE_DEPTH = 64;
+    private static final ThreadLocal<Trampoline> TRAMPOLINE = ThreadLocal.withInitial(Trampoline::new);
+
+    private static void chainTail(KDeferred d, Object x) {
+        Trampoline t = Trampoline.tailCall();
+        try {
+            d.chain(x);
+        } finally {
+            t.tail = false;
+        }
+    }
+
+    private static void errorTail(KDeferred d, Object e) {
+        Trampoline t = Trampoline.tailCall();
+        try {
+            d.fireError(e);
+        } finally {
+            t.tail = false;
+        }
+    }
+
     private final static class LsTomb extends AListener {
 
         @Override
@@ -545,12 +807,59 @@ public class KDeferred
         GET_EXECUTOR = f;
     }
 
+    // 0 - leaked errors are not detected, 1 - all errors are tracked, N - 1 of N errors is tracked
+    private static volatile int LEAK_DETECTION = 1;
+
+    /**
+     * Sets leaked errors detection mode: 0 disables detection, 1 tracks every error,
+     * N tracks randomly sampled 1 of N errors.  First leak of each error class is logged,
+     * others are counted and logged periodically as a per-class summary.
+     */
+    public static void setLeakDetection(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("leak detection sampling must not be negative");
+        }
+        LEAK_DETECTION = n;
+    }
+
+    /**
+     * Returns amount of detected leaked errors per class of error.
+     */
+    public static IPersistentMap leakedErrors() {
+        return ErrBoxLeakable.leakedErrors();
+    }
+
+    // plain listeners are flattened into a chunk when their amount exceeds the threshold
+    private static final int CHUNK_THRESHOLD = 16;
+
+    // chunks of deferreds with at least this amount of listeners are fired on the executor, 0 means 'never'
+    private static volatile int FORK_CHUNK_SIZE = 0;
+
+    /**
+     * Enables firing of listener chunks on the executor (see 'setExecutorProviderFn') for deferreds
+     * with at least 'n' listeners, so realizing deferred with hundreds of listeners is not serialized
+     * on a single thread.  Zero disables forking (default).
+     */
+    public static void setForkChunkSize(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("chunk size must not be negative");
+        }
+        FORK_CHUNK_SIZE = n == 0 ? 0 : Math.max(n, CHUNK_THRESHOLD + 1);
+    }
+
+    // marks primitive value stored in '_prim', it is boxed lazily on first 'getRaw'
+    private static final class PrimValue {
+    }
+
     private final static Object MISS_VALUE = new MissValue();
     private final static AListener LS_TOMB = new LsTomb();
+    private final static PrimValue PRIM_LONG = new PrimValue();
+    private final static PrimValue PRIM_DOUBLE = new PrimValue();
 
     private byte _owned;
     byte succeeded;
     private Object _value;
+    private long _prim;
     private Object _token;
     private AListener _lhead;
     private IPersistentMap meta;
@@ -716,15 +1025,44 @@ public class KDeferred
         return false;
     }
 
+    // amount of listeners in the list (plain listeners at the head are followed only by chunks)
+    private static int listenersCount(AListener node) {
+        int n = 0;
+        for (; node != null; node = node.next) {
+            if (node instanceof ListenerChunk) {
+                return n + ((ListenerChunk) node).count;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    private static boolean forkChunk(AListener node, Object x, boolean success) {
+        if (!(node instanceof ListenerChunk)) {
+            return false;
+        }
+        try {
+            ((Executor) GET_EXECUTOR.invoke()).execute(new ForkedChunk((ListenerChunk) node, x, success));
+            return true;
+        } catch (Throwable e) {
+            logError(e, "failed to fork listeners chunk");
+            return false;
+        }
+    }
+
     private void fireSuccessListeners(Object x) {
         AListener node = tombListeners();
         this.succeeded = 1;
-        for (; node != null; node = node.next) {
-            try {
-                node.success(x);
-            } catch (Throwable e) {
-                logError(e, String.format("error in deferred success-handler: %s", node));
-            }
+        if (node != null) {
+            notify(node, x, true);
+        }
+    }
+
+    private void firePrimListeners() {
+        AListener node = tombListeners();
+        this.succeeded = 1;
+        if (node != null) {
+            notify(node, this.getRaw(), true);
         }
     }
 
@@ -733,13 +1071,58 @@ public class KDeferred
         if (node == null) {
             eb.detectLeakedError(this);
         } else {
-            Object x = eb.getError();
-            for (; node != null; node = node.next) {
-                try {
-                    node.error(x);
-                } catch (Throwable e) {
-                    logError(e, String.format("error in deferred success-handler: %s", node));
+            notify(node, eb.getError(), false);
+        }
+    }
+
+    private static void notify(AListener node, Object x, boolean success) {
+        Trampoline t = TRAMPOLINE.get();
+        int depth = t.depth;
+        if (!t.tail) {
+            // realized by a caller which may rely on listeners being fired (e.g. blocks on a dependent),
+            // so it gets its own queue, drained before returning
+            ArrayDeque<Object> q = t.queue;
+            t.queue = null;
+            t.depth = 1;
+            try {
+                notify0(node, x, success);
+                t.drain();
+            } finally {
+                t.depth = depth;
+                t.queue = q;
+            }
+            return;
+        }
+        t.tail = false;
+        if (depth >= TRAMPOLINE_DEPTH) {
+            t.push(node, x, success);
+            return;
+        }
+        t.depth = depth + 1;
+        try {
+            notify0(node, x, success);
+            if (depth == 0) {
+                t.drain();
+            }
+        } finally {
+            t.depth = depth;
+        }
+    }
+
+    private static void notify0(AListener node, Object x, boolean success) {
+        int fcs = FORK_CHUNK_SIZE;
+        boolean fork = fcs != 0 && listenersCount(node) >= fcs;
+        for (; node != null; node = node.next) {
+            try {
+                if (!(fork && forkChunk(node, x, success))) {
+                    if (success) {
+                        node.success(x);
+                    } else {
+                        node.error(x);
+                    }
                 }
+            } catch (Throwable e) {
+                logError(e, String.format("error in deferred %s-handler: %s", success ? "success" : "error", node));
             }
         }
     }
@@ -761,18 +1144,37 @@ public class KDeferred
 
     private boolean listen0(AListener head, AListener ls) {
         AListener x;
-        ls.next = head;
-        while ((x = (AListener) LHEAD.compareAndExchangeRelease(this, head, ls)) != head) {
+        AListener node = pushNode(head, ls);
+        while ((x = (AListener) LHEAD.compareAndExchangeRelease(this, head, node)) != head) {
             if (x == LS_TOMB) {
                 return false;
             }
             head = x;
-            ls.next = x;
+            node = pushNode(x, ls);
             Thread.onSpinWait();
         }
         return true;
     }
 
+    private static AListener pushNode(AListener head, AListener ls) {
+        int depth = (head == null || head instanceof ListenerChunk) ? 1 : head.depth + 1;
+        if (depth <= CHUNK_THRESHOLD) {
+            ls.depth = depth;
+            ls.next = head;
+            return ls;
+        }
+        // flatten plain listeners into a single chunk, order of firing is preserved
+        VarHandle.acquireFence();
+        AListener[] ls0 = new AListener[depth];
+        ls0[0] = ls;
+        int n = 1;
+        AListener h = head;
+        for (; h != null && !(h instanceof ListenerChunk) && n < depth; h = h.next) {
+            ls0[n++] = h;
+        }
+        return new ListenerChunk(n == depth ? ls0 : Arrays.copyOf(ls0, n), (ListenerChunk) h);
+    }
+
     public void listen(IFn onSuc, IFn onErr) {
         if (this.listen0(onSuc, onErr)) {
             return;
@@ -851,7 +1253,7 @@ public class KDeferred
     }
 
     private boolean isCancelledListener(AListener als) {
-        return !((als instanceof Dl) && ((Dl) als).ls == null);
+        return (als instanceof Dl) && ((byte) Dl.CANCEL.getOpaque(als)) != Dl.ACTIVE;
     }
 
     private Dl findAndCancelListener(AListener head, Object ls) {
@@ -861,6 +1263,11 @@ public class KDeferred
                 if (ahead.ls == ls && ahead.acquireForCancel()) {
                     return ahead;
                 }
+            } else if (head instanceof ListenerChunk) {
+                Dl dl = ((ListenerChunk) head).findDl(ls);
+                if (dl != null) {
+                    return dl;
+                }
             }
             head = head.next;
         }
@@ -968,7 +1375,69 @@ public class KDeferred
     }
 
     public final Object getRaw() {
-        return VALUE.getAcquire(this);
+        Object v = VALUE.getAcquire(this);
+        return (v instanceof PrimValue) ? boxPrim(v) : v;
+    }
+
+    private Object boxPrim(Object p) {
+        Object b = (p == PRIM_LONG) ? (Object) Long.valueOf(_prim) : (Object) Double.longBitsToDouble(_prim);
+        // concurrent readers may box the value twice, only one box is kept
+        Object x = VALUE.compareAndExchangeRelease(this, p, b);
+        return x == p ? b : x;
+    }
+
+    /**
+     * Returns value of succeeded deferred as primitive long, values set by 'fireLong' are not boxed.
+     */
+    public final long getLong() {
+        Object v = VALUE.getAcquire(this);
+        if (v == PRIM_LONG) {
+            return _prim;
+        }
+        return RT.longCast(this.get());
+    }
+
+    /**
+     * Returns value of succeeded deferred as primitive double, values set by 'fireDouble' are not boxed.
+     */
+    public final double getDouble() {
+        Object v = VALUE.getAcquire(this);
+        if (v == PRIM_DOUBLE) {
+            return Double.longBitsToDouble(_prim);
+        }
+        return RT.doubleCast(this.get());
+    }
+
+    /**
+     * Realizes deferred with primitive value, boxing is deferred until the value is read as an object.
+     * Must be called only by the owner of the token.
+     */
+    public void fireLong(long x, Object token) {
+        if (TOKEN.getOpaque(this) != token) {
+            throw new IllegalStateException("invalid claim token");
+        }
+        if (VALUE.getOpaque(this) == MISS_VALUE) {
+            this._prim = x;
+            if (complete(PRIM_LONG)) {
+                firePrimListeners();
+            }
+        }
+    }
+
+    /**
+     * Realizes deferred with primitive value, boxing is deferred until the value is read as an object.
+     * Must be called only by the owner of the token.
+     */
+    public void fireDouble(double x, Object token) {
+        if (TOKEN.getOpaque(this) != token) {
+            throw new IllegalStateException("invalid claim token");
+        }
+        if (VALUE.getOpaque(this) == MISS_VALUE) {
+            this._prim = Double.doubleToRawLongBits(x);
+            if (complete(PRIM_DOUBLE)) {
+                firePrimListeners();
+            }
+        }
     }
 
     public final Object get() {
@@ -984,10 +1453,29 @@ public class KDeferred
         return v;
     }
 
-    private CountDownLatch acquireCountdDownLatch() {
-        CountDownLatch cdl = new CountDownLatch(1);
-        this.listen(new Cdl(cdl));
-        return cdl;
+    /**
+     * Parks current thread until the deferred is realized or 'nanos' are elapsed (no timeout when 'nanos' is 0).
+     * Waiter is the only allocated node, it works with virtual threads too.
+     */
+    private void await(long nanos) throws InterruptedException {
+        if (!this.listen0(new Waiter(Thread.currentThread()))) {
+            return;
+        }
+        long deadline = nanos == 0 ? 0 : System.nanoTime() + nanos;
+        while (this.getRaw() == MISS_VALUE) {
+            if (nanos == 0) {
+                LockSupport.park(this);
+            } else {
+                long rest = deadline - System.nanoTime();
+                if (rest <= 0) {
+                    return;
+                }
+                LockSupport.parkNanos(this, rest);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
     }
 
     @Override
@@ -1014,7 +1502,7 @@ public class KDeferred
             return timeoutValue;
         }
         try {
-            acquireCountdDownLatch().await(ms, TimeUnit.MILLISECONDS);
+            await(TimeUnit.MILLISECONDS.toNanos(ms));
         } catch (InterruptedException e) {
             throw Util.sneakyThrow(e);
         }
@@ -1032,7 +1520,7 @@ public class KDeferred
             return unwrapValue(v);
         }
         try {
-            acquireCountdDownLatch().await();
+            await(0);
         } catch (InterruptedException e) {
             throw Util.sneakyThrow(e);
         }
@@ -1174,6 +1662,40 @@ public class KDeferred
         return wrap(x).bind(valFn, errFn, ex);
     }
 
+    private KDeferred timeout0(long ms, Object value, boolean hasValue) {
+        if (this.getRaw() != MISS_VALUE) {
+            return this;
+        }
+        TimeoutLs ls = new TimeoutLs(this, ms, value, hasValue);
+        ls.timeout = KTimer.getInstance().schedule(ms, TimeUnit.MILLISECONDS, ls);
+        if (!this.listen0(ls)) {
+            ls.timeout.cancel();
+        }
+        return this;
+    }
+
+    /**
+     * Errors the deferred with TimeoutException when it is not realized within 'ms' milliseconds.
+     * Timer is cancelled when the deferred is realized first.
+     */
+    public KDeferred timeout(long ms) {
+        return timeout0(ms, null, false);
+    }
+
+    /**
+     * Succeeds the deferred with 'value' when it is not realized within 'ms' milliseconds.
+     */
+    public KDeferred timeout(long ms, Object value) {
+        return timeout0(ms, value, true);
+    }
+
+    /**
+     * Returns deferred realized with 'value' after 'ms' milliseconds.
+     */
+    public static KDeferred sleep(long ms, Object value) {
+        return create().timeout0(ms, value, true);
+    }
+
     public static KDeferred create() {
         KDeferred d = new KDeferred();
         VALUE.setRelease(d, MISS_VALUE);
@@ -1188,7 +1710,7 @@ public class KDeferred
     }
 
     public static KDeferred wrapErr(Object e) {
-        ErrBox eb = new ErrBoxLeakable(e);
+        ErrBox eb = ErrBox.leakable(e);
         KDeferred d = new KDeferred();
         LHEAD.setOpaque(d, LS_TOMB);
         VALUE.setRelease(d, eb);
@@ -0,0 +1,227 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import clojure.lang.IFn;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Reduced;
+
+public final class KParallel {
+
+    private static final VarHandle WIP;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            WIP = l.findVarHandle(KParallel.class, "_wip", int.class);
+        } catch (ReflectiveOperationException var1) {
+            throw new ExceptionInInitializerError(var1);
+        }
+    }
+
+    private static final int ORDERED = 0;
+    private static final int UNORDERED = 1;
+    private static final int REDUCE = 2;
+
+    // amount of requested 'pump' passes, only one thread pumps at a time
+    @SuppressWarnings("unused")
+    private volatile int _wip;
+
+    private final IFn f;
+    private final Iterator<?> it;
+    private final int parallelism;
+    private final int mode;
+    private final IFn rf;
+    private final KDeferred res = KDeferred.create();
+
+    // guarded by 'this'
+    private final HashMap<Integer, KDeferred> inflight = new HashMap<>();
+    private final ArrayList<Object> results = new ArrayList<>();
+    private Object acc;
+    private int started;
+    private boolean exhausted;
+    private boolean done;
+
+    private final class ElemLs extends KDeferred.AListener {
+
+        private final int idx;
+
+        ElemLs(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        public void success(Object x) {
+            onSuccess(idx, x);
+        }
+
+        @Override
+        public void error(Object e) {
+            res.error(e, null);
+        }
+    }
+
+    private final class CancelLs extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+            revokeInflight();
+        }
+
+        @Override
+        public void error(Object e) {
+            revokeInflight();
+        }
+    }
+
+    private KParallel(IFn f, Iterator<?> it, int parallelism, int mode, IFn rf, Object init) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.f = f;
+        this.it = it;
+        this.parallelism = parallelism;
+        this.mode = mode;
+        this.rf = rf;
+        this.acc = init;
+    }
+
+    /**
+     * Applies async fn 'f' to all items with at most 'parallelism' unrealized results at a time.
+     * Returns deferred with vector of results, in order of items or in order of completion.
+     */
+    public static KDeferred pmap(IFn f, Iterator<?> it, int parallelism, boolean ordered) {
+        return new KParallel(f, it, parallelism, ordered ? ORDERED : UNORDERED, null, null).start();
+    }
+
+    /**
+     * Applies async fn 'f' to all items with at most 'parallelism' unrealized results at a time,
+     * results are reduced with 'rf' in order of completion (calls to 'rf' are serialized).
+     */
+    public static KDeferred preduce(IFn f, IFn rf, Object init, Iterator<?> it, int parallelism) {
+        return new KParallel(f, it, parallelism, REDUCE, rf, init).start();
+    }
+
+    private KDeferred start() {
+        res.listen(new CancelLs());
+        pump();
+        return res;
+    }
+
+    private void pump() {
+        if ((int) WIP.getAndAdd(this, 1) != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (true) {
+                int i;
+                Object x;
+                synchronized (this) {
+                    if (done || exhausted || inflight.size() >= parallelism) {
+                        break;
+                    }
+                    if (!it.hasNext()) {
+                        exhausted = true;
+                        break;
+                    }
+                    x = it.next();
+                    i = started++;
+                    if (mode == ORDERED) {
+                        results.add(null);
+                    }
+                }
+                launch(i, x);
+            }
+            Object r = null;
+            synchronized (this) {
+                if (!done && exhausted && inflight.isEmpty()) {
+                    done = true;
+                    r = (mode == REDUCE) ? acc : LazilyPersistentVector.create(results);
+                }
+            }
+            if (r != null) {
+                res.success(r, null);
+            }
+            missed = (int) WIP.getAndAdd(this, -missed) - missed;
+        } while (missed != 0);
+    }
+
+    private void launch(int i, Object x) {
+        KDeferred d;
+        try {
+            d = KDeferred.wrap(f.invoke(x));
+        } catch (Throwable e) {
+            res.error(e, null);
+            return;
+        }
+        boolean revoked;
+        synchronized (this) {
+            revoked = done;
+            if (!revoked) {
+                inflight.put(i, d);
+            }
+        }
+        if (revoked) {
+            d.error(RevokeException.DEFERRED_REVOKED, null);
+        } else {
+            // called inline when result is realized, the next item is taken by 'pump' loop
+            d.listen(new ElemLs(i));
+        }
+    }
+
+    private void onSuccess(int i, Object x) {
+        Object reduced = null;
+        boolean isReduced = false;
+        Throwable error = null;
+        synchronized (this) {
+            if (done || inflight.remove(i) == null) {
+                return;
+            }
+            switch (mode) {
+                case ORDERED:
+                    results.set(i, x);
+                    break;
+                case UNORDERED:
+                    results.add(x);
+                    break;
+                default:
+                    try {
+                        acc = rf.invoke(acc, x);
+                        if (RT.isReduced(acc)) {
+                            reduced = ((Reduced) acc).deref();
+                            isReduced = true;
+                            done = true;
+                        }
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+            }
+        }
+        if (error != null) {
+            res.error(error, null);
+        } else if (isReduced) {
+            // early reduced result, in-flight items are revoked by the result listener
+            res.success(reduced, null);
+        } else {
+            pump();
+        }
+    }
+
+    private void revokeInflight() {
+        KDeferred[] ds;
+        synchronized (this) {
+            done = true;
+            ds = inflight.values().toArray(new KDeferred[0]);
+            inflight.clear();
+        }
+        for (KDeferred d : ds) {
+            // unclaimed deferreds are realized, the ones from 'revoke' call their cancellers
+            d.error(RevokeException.DEFERRED_REVOKED, null);
+        }
+    }
+}
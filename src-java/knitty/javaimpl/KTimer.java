@@ -0,0 +1,315 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer, all timeouts are run by a single daemon thread.
+ * Scheduling and cancellation are O(1), timeouts are fired with tick precision (1ms by default).
+ * Tasks are run on the timer thread, so they must be short and non-blocking.
+ */
+public final class KTimer {
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private static final KTimer INSTANCE = new KTimer();
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final VarHandle STATE;
+    private static final VarHandle STARTED;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            STATE = l.findVarHandle(Timeout.class, "_state", int.class);
+            STARTED = l.findVarHandle(KTimer.class, "_started", int.class);
+        } catch (ReflectiveOperationException var1) {
+            throw new ExceptionInInitializerError(var1);
+        }
+    }
+
+    public static final class Timeout {
+
+        @SuppressWarnings("unused")
+        private volatile int _state;
+
+        private final KTimer timer;
+        private final long deadline; // relative to 'startTime'
+        private final Runnable task;
+
+        // owned by the timer thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(KTimer timer, long deadline, Runnable task) {
+            this.timer = timer;
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Cancels the timeout, returns false when it is already fired or cancelled.
+         */
+        public boolean cancel() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                timer.cancelled.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return (int) STATE.getAcquire(this) == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return (int) STATE.getAcquire(this) == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    KDeferred.logError(e, String.format("error in timer task: %s", task));
+                }
+            }
+        }
+    }
+
+    // doubly linked list of timeouts, owned by the timer thread
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+
+        int expire() {
+            int removed = 0;
+            Timeout t = head;
+            while (t != null) {
+                if (t.rounds <= 0 || t.isCancelled()) {
+                    Timeout next = remove(t);
+                    removed++;
+                    t.expire();
+                    t = next;
+                } else {
+                    t.rounds--;
+                    t = t.next;
+                }
+            }
+            return removed;
+        }
+    }
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    @SuppressWarnings("unused")
+    private volatile int _started;
+    private volatile boolean idle;
+    private volatile long requestedTickNanos = DEFAULT_TICK_NANOS;
+    private Thread worker;
+
+    // owned by the timer thread
+    private long tickNanos = DEFAULT_TICK_NANOS;
+    private long tick;
+    private long size;
+
+    private KTimer() {
+        this.wheel = new Bucket[WHEEL_SIZE];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = WHEEL_SIZE - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    public static KTimer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes duration of the timer tick, already scheduled timeouts are rehashed on the next tick.
+     * Longer ticks reduce timer overhead at the cost of precision.
+     */
+    public void setTick(long tick, TimeUnit unit) {
+        long t = unit.toNanos(tick);
+        if (t <= 0) {
+            throw new IllegalArgumentException("timer tick must be positive");
+        }
+        requestedTickNanos = t;
+    }
+
+    /**
+     * Schedules 'task' to be run on the timer thread after 'delay'.
+     */
+    public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        long d = unit.toNanos(delay);
+        long rel = System.nanoTime() - startTime + d;
+        return schedule0(d > 0 && rel < 0 ? Long.MAX_VALUE : rel, task);
+    }
+
+    /**
+     * Schedules 'task' to be run on the timer thread at 'nanoTime' (as returned by System.nanoTime).
+     */
+    public Timeout scheduleAt(long nanoTime, Runnable task) {
+        return schedule0(nanoTime - startTime, task);
+    }
+
+    private Timeout schedule0(long deadline, Runnable task) {
+        if ((int) STARTED.getAcquire(this) == 0) {
+            start();
+        }
+        Timeout t = new Timeout(this, Math.max(0, deadline), task);
+        pending.add(t);
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+        return t;
+    }
+
+    private void start() {
+        synchronized (this) {
+            if ((int) STARTED.getAcquire(this) == 0) {
+                Thread w = new Thread(this::run, "knitty-timer");
+                w.setDaemon(true);
+                worker = w;
+                w.start();
+                STARTED.setRelease(this, 1);
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long rt = requestedTickNanos;
+            if (rt != tickNanos) {
+                rehash(rt);
+            }
+            waitForNextTick();
+            processCancelled();
+            transferPending();
+            size -= wheel[(int) (tick & mask)].expire();
+            tick++;
+            if (size == 0 && pending.isEmpty()) {
+                waitForTimeouts();
+            }
+        }
+    }
+
+    private void waitForNextTick() {
+        long target = tickNanos * (tick + 1);
+        while (true) {
+            long sleep = target - (System.nanoTime() - startTime);
+            if (sleep <= 0) {
+                return;
+            }
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void waitForTimeouts() {
+        idle = true;
+        while (pending.isEmpty()) {
+            LockSupport.park(this);
+        }
+        idle = false;
+        // the wheel is empty, so it is safe to skip idle ticks
+        tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+    }
+
+    private void processCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            Bucket b = t.bucket;
+            if (b != null) {
+                b.remove(t);
+                size--;
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout t = pending.poll();
+            if (t == null) {
+                break;
+            }
+            if (!t.isCancelled()) {
+                place(t);
+            }
+        }
+    }
+
+    private void place(Timeout t) {
+        long ticks = t.deadline / tickNanos;
+        t.rounds = (ticks - tick) / WHEEL_SIZE;
+        wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+        size++;
+    }
+
+    private void rehash(long newTickNanos) {
+        ArrayList<Timeout> ts = new ArrayList<>();
+        for (Bucket b : wheel) {
+            Timeout t = b.head;
+            while (t != null) {
+                Timeout next = b.remove(t);
+                if (!t.isCancelled()) {
+                    ts.add(t);
+                }
+                t = next;
+            }
+        }
+        tickNanos = newTickNanos;
+        tick = (System.nanoTime() - startTime) / newTickNanos;
+        size = 0;
+        for (Timeout t : ts) {
+            place(t);
+        }
+    }
+}
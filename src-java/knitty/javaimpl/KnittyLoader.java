@@ -45,11 +45,22 @@ public class KnittyLoader extends DynamicClassLoader {
             cl.loadClass("knitty.javaimpl.RevokeException");
             cl.loadClass("knitty.javaimpl.KDeferred");
             cl.loadClass("knitty.javaimpl.KAwaiter");
+            cl.loadClass("knitty.javaimpl.KParallel");
+            cl.loadClass("knitty.javaimpl.KTimer");
             cl.loadClass("knitty.javaimpl.KwMapper");
+            cl.loadClass("knitty.javaimpl.KwBitSet");
+            cl.loadClass("knitty.javaimpl.ExecutionPool");
+            cl.loadClass("knitty.javaimpl.ExecutionPool$VirtualThreadExecutor");
             cl.loadClass("knitty.javaimpl.YankInputs");
             cl.loadClass("knitty.javaimpl.YankInputsAssoc");
+            cl.loadClass("knitty.javaimpl.YankPlan");
+            cl.loadClass("knitty.javaimpl.YankLayout");
             cl.loadClass("knitty.javaimpl.YankCtx");
+            cl.loadClass("knitty.javaimpl.YarnBatcher");
+            cl.loadClass("knitty.javaimpl.YarnCache");
             cl.loadClass("knitty.javaimpl.YankResult");
+            cl.loadClass("knitty.javaimpl.YankBatch");
+            cl.loadClass("knitty.javaimpl.YankDedupe");
         } catch (ClassNotFoundException | IOException e) {
             throw new IllegalStateException(e);
         }
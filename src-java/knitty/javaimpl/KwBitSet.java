@@ -0,0 +1,136 @@
+package knitty.javaimpl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import clojure.lang.Counted;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.RT;
+
+/**
+ * Immutable set of keyword indexes (see {@link KwMapper}), used to keep transitive dependencies of yarns.
+ * Iterates over keywords, resolved by the current keyword index.
+ */
+public final class KwBitSet implements Counted, Iterable<Keyword> {
+
+    public static final KwBitSet EMPTY = new KwBitSet(new long[0]);
+
+    private final long[] words;  // the last word is not zero
+    private final int count;
+
+    private KwBitSet(long[] words) {
+        this.words = words;
+        int n = 0;
+        for (long w : words) {
+            n += Long.bitCount(w);
+        }
+        this.count = n;
+    }
+
+    /**
+     * Returns union of 'deps' and their closures, 'closures' may contain nulls.
+     */
+    public static KwBitSet closure(Keyword[] deps, KwBitSet[] closures) {
+        if (deps.length != closures.length) {
+            throw new IllegalArgumentException("deps and closures must have the same length");
+        }
+        KwMapper kwMapper = KwMapper.getInstance();
+        int[] ids = new int[deps.length];
+        int n = 0;
+        for (int j = 0; j < deps.length; j++) {
+            int i = kwMapper.resolveByKeyword(deps[j]);
+            if (i == -1) {
+                throw new IllegalArgumentException("unknown yarn " + deps[j]);
+            }
+            ids[j] = i;
+            n = Math.max(n, (i >> 6) + 1);
+            if (closures[j] != null) {
+                n = Math.max(n, closures[j].words.length);
+            }
+        }
+        long[] ws = new long[n];
+        for (int j = 0; j < deps.length; j++) {
+            ws[ids[j] >> 6] |= 1L << ids[j];
+            KwBitSet c = closures[j];
+            if (c != null) {
+                long[] cw = c.words;
+                for (int k = 0; k < cw.length; k++) {
+                    ws[k] |= cw[k];
+                }
+            }
+        }
+        return new KwBitSet(ws);
+    }
+
+    public boolean contains(int i) {
+        int w = i >> 6;
+        return i >= 0 && w < words.length && (words[w] & (1L << i)) != 0;
+    }
+
+    public boolean contains(Keyword k) {
+        return contains(KwMapper.getInstance().resolveByKeyword(k));
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public Iterator<Keyword> iterator() {
+        KwMapper kwMapper = KwMapper.getInstance();
+        return new Iterator<Keyword>() {
+
+            private int i = nextSet(0);
+
+            private int nextSet(int from) {
+                int w = from >> 6;
+                if (w >= words.length) {
+                    return -1;
+                }
+                long word = words[w] & (-1L << from);
+                while (true) {
+                    if (word != 0) {
+                        return (w << 6) + Long.numberOfTrailingZeros(word);
+                    }
+                    if (++w == words.length) {
+                        return -1;
+                    }
+                    word = words[w];
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return i != -1;
+            }
+
+            @Override
+            public Keyword next() {
+                if (i == -1) {
+                    throw new NoSuchElementException();
+                }
+                Keyword k = kwMapper.resolveByIndex(i);
+                i = nextSet(i + 1);
+                return k;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof KwBitSet && Arrays.equals(words, ((KwBitSet) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "#knitty/KwBitSet" + RT.printString(PersistentHashSet.create(RT.seq(this)));
+    }
+}
@@ -1,121 +1,251 @@
 package knitty.javaimpl;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.BitSet;
 
-import clojure.lang.Associative;
 import clojure.lang.Keyword;
-import clojure.lang.PersistentHashMap;
 
+/**
+ * Maps yarn keywords to dense int indexes (starting from 1).
+ * Instances are cheap snapshots over a shared index, keywords registered after the snapshot was taken
+ * are not visible through it.  Indexes of retired keywords are reused by newly registered ones,
+ * each retirement starts a new epoch, so indexes resolved (or compiled into code) before it may be stale.
+ */
 public final class KwMapper {
 
-    public static final AtomicReference<KwMapper> INSTANCE = new AtomicReference<>(new KwMapper());
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle KWS = MethodHandles.arrayElementVarHandle(Keyword[].class);
+
+    // marks slot of a retired keyword, probing continues past it
+    private static final Object TOMBSTONE = new Object();
+
+    // max amount of probed slots, lookup (and miss) never does more probes;
+    // with load factor below 0.5 longer probe sequences are practically never met,
+    // so the table grows by its load and not by the probe limit
+    static final int MAX_PROBES = 32;
+    private static final int MIN_CAPACITY = 1 << 10;
+
+    /**
+     * Open-addressing table with triangular (quadratic) probing, readers are lock-free.
+     * Offsets 0, 1, 3, 6... visit every slot of a power-of-two table and don't form long clusters.
+     * Keywords are interned, so they are compared by identity.
+     */
+    static final class Table {
+
+        final Object[] keys;
+        final int[] ids;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new Object[capacity];
+            this.ids = new int[capacity];
+            this.mask = capacity - 1;
+        }
 
-    private final int maxId;
-    private final Associative keyword2Id;
-    private final Associative id2Keyword;
+        static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        int get(Keyword k) {
+            Object[] ks = keys;
+            int m = mask;
+            int h = spread(k.hasheq());
+            for (int p = 0, s = h & m; p < MAX_PROBES; s = (s + ++p) & m) {
+                Object x = KEYS.getAcquire(ks, s);
+                if (x == k) {
+                    return ids[s];
+                }
+                if (x == null) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
 
-    private final Keyword[] id2KeywordCache;
-    private final int[] keywordHash2IdCache;
-    private final int hashMask;
-    private final int maxCollisions;
+        // called under lock, 'id' is published by release-store of the key
+        boolean put(Keyword k, int id) {
+            Object[] ks = keys;
+            int m = mask;
+            int h = spread(k.hasheq());
+            for (int p = 0, s = h & m; p < MAX_PROBES; s = (s + ++p) & m) {
+                if (ks[s] == null) {
+                    ids[s] = id;
+                    KEYS.setRelease(ks, s, k);
+                    return true;
+                }
+            }
+            return false;
+        }
 
-    static final int roundUpBits(int x, int bits) {
-        int mask = (1 << bits) - 1;
-        return (x | mask) + 1;
+        // called under lock
+        void remove(Keyword k) {
+            Object[] ks = keys;
+            int m = mask;
+            int h = spread(k.hasheq());
+            for (int p = 0, s = h & m; p < MAX_PROBES; s = (s + ++p) & m) {
+                if (ks[s] == k) {
+                    KEYS.setRelease(ks, s, TOMBSTONE);
+                    return;
+                }
+            }
+        }
     }
 
-    KwMapper(
-        int maxId,
-        Associative keyword2Id,
-        Associative id2Keyword,
-        Keyword[] id2KeywordCache,
-        int[] keywordHarh2IdCache
-    ) {
+    // shared index, guarded by 'LOCK' for writes
+    private static final Object LOCK = new Object();
+    private static volatile Table TABLE = new Table(MIN_CAPACITY);
+    private static volatile Keyword[] BY_ID = new Keyword[MIN_CAPACITY];
+    private static int size;  // live keywords
+    private static int used;  // live keywords and tombstones
+    private static final BitSet FREE = new BitSet();
+
+    private static volatile KwMapper INSTANCE = new KwMapper(0, 0);
+
+    private final int maxId;
+    private final int epoch;
+
+    private KwMapper(int maxId, int epoch) {
         this.maxId = maxId;
-        this.keyword2Id = keyword2Id;
-        this.id2Keyword = id2Keyword;
-
-        int hashCacheLen = roundUpBits(maxId * 8, 12);
-        this.hashMask = hashCacheLen - 1;
-
-        this.keywordHash2IdCache = (
-            (keywordHarh2IdCache != null && keywordHarh2IdCache.length == hashCacheLen)
-            ? keywordHarh2IdCache
-            : new int[hashCacheLen]
-        );
-        this.id2KeywordCache = (
-            (id2KeywordCache != null && id2KeywordCache.length < maxId)
-            ? id2KeywordCache
-            : new Keyword[roundUpBits(maxId, 10)]
-        );
-
-        this.maxCollisions = 8;
+        this.epoch = epoch;
     }
 
-    KwMapper(int maxId, Associative keyword2Id, Associative id2Keyword) {
-        this(maxId, keyword2Id, id2Keyword, null, null);
+    public int maxIndex() {
+        return maxId;
     }
 
-    KwMapper() {
-        this(0, PersistentHashMap.EMPTY, PersistentHashMap.EMPTY);
+    /**
+     * Returns amount of retirements, zero means that no index was ever reused.
+     */
+    public int epoch() {
+        return epoch;
     }
 
-    public int maxIndex() {
-        return maxId;
+    /**
+     * Checks that indexes (resolved under an older epoch) still belong to the same keywords.
+     */
+    public void checkIndexes(Keyword[] ks, int[] ids) {
+        for (int j = 0; j < ks.length; j++) {
+            checkIndex(ids[j], ks[j]);
+        }
     }
 
-    public KwMapper addKeyword(Keyword k) {
-        if (keyword2Id.containsKey(k)) {
-            return this;
+    public void checkIndex(int i, Keyword k) {
+        if (resolveByIndex(i) != k) {
+            throw new IllegalStateException(String.format(
+                "stale index %d of keyword %s, it was resolved before the keyword was retired", i, k));
         }
-        int t = this.maxId + 1;
-        return new KwMapper(
-            t,
-            keyword2Id.assoc(k, t),
-            id2Keyword.assoc(t, k),
-            id2KeywordCache,
-            keywordHash2IdCache);
     }
 
     public Keyword resolveByIndex(int i) {
-        Keyword r = this.id2KeywordCache[i];
-        if (r == null) {
-            r = (Keyword) id2Keyword.valAt(i);
-            this.id2KeywordCache[i] = r;
-        }
-        return r;
+        return i <= maxId ? (Keyword) KWS.getAcquire(BY_ID, i) : null;
     }
 
     public int resolveByKeyword(Keyword k) {
-        int h = k.hasheq() & hashMask;
-        int t = keywordHash2IdCache[h];
-        if (t != 0 && k == this.id2KeywordCache[t]) {
-            return t;
+        int t = TABLE.get(k);
+        return t <= maxId ? t : -1;
+    }
+
+    private static Table rehash(Table t, Keyword k, int id) {
+        // keep load factor below 0.5 (tombstones are dropped), grow further when probe limit is exceeded
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(size * 4));
+        while (true) {
+            if (capacity <= 0) {
+                throw new IllegalStateException("too many keywords");
+            }
+            Table nt = new Table(capacity);
+            boolean ok = nt.put(k, id);
+            Object[] ks = t.keys;
+            for (int s = 0; ok && s < ks.length; s++) {
+                Object x = ks[s];
+                if (x != null && x != TOMBSTONE) {
+                    ok = nt.put((Keyword) x, t.ids[s]);
+                }
+            }
+            if (ok) {
+                return nt;
+            }
+            capacity <<= 1;
         }
-        return resolveByKeyword0(h, k);
     }
 
-    private int resolveByKeyword0(int h, Keyword k) {
-        for (int i = 0; i < maxCollisions; i++) {
-            h = (h + i) & hashMask;
-            int t = keywordHash2IdCache[h];
-            if (t == 0) {
-                int r = (int) keyword2Id.valAt(k, -1);
-                if (r != -1) keywordHash2IdCache[h] = r;
+    public static final int registerKeyword(Keyword k) {
+        int r = TABLE.get(k);
+        if (r != -1) {
+            return r;
+        }
+        synchronized (LOCK) {
+            Table t = TABLE;
+            r = t.get(k);
+            if (r != -1) {
                 return r;
-            } else if (resolveByIndex(t) == k) {
-                return t;
             }
+            int maxId = INSTANCE.maxId;
+            r = FREE.nextSetBit(0);
+            if (r == -1) {
+                r = maxId + 1;
+            } else {
+                FREE.clear(r);
+            }
+
+            Keyword[] byId = BY_ID;
+            if (r >= byId.length) {
+                Keyword[] b = new Keyword[byId.length << 1];
+                System.arraycopy(byId, 0, b, 0, byId.length);
+                BY_ID = byId = b;
+            }
+            KWS.setRelease(byId, r, k);
+            INSTANCE = new KwMapper(Math.max(maxId, r), INSTANCE.epoch);
+
+            // readers continue to use the old table while the new one is filled
+            size++;
+            if ((used + 1) * 2 > t.keys.length || !t.put(k, r)) {
+                TABLE = rehash(t, k, r);
+                used = size;
+            } else {
+                used++;
+            }
+            return r;
         }
-        return (int) keyword2Id.valAt(k, -1);
     }
 
-    public static final int registerKeyword(Keyword k) {
-        KwMapper km = INSTANCE.updateAndGet(kw -> kw.addKeyword(k));
-        return km.resolveByKeyword(k);
+    /**
+     * Removes keyword from the index, its id is reused by keywords registered later.
+     * Yank contexts check indexes used by yarns, plans & layouts once any keyword is retired,
+     * so code still holding the retired id fails instead of reading a node of another keyword.
+     * Returns false when the keyword is not registered.
+     */
+    public static boolean retireKeyword(Keyword k) {
+        synchronized (LOCK) {
+            int r = TABLE.get(k);
+            if (r == -1) {
+                return false;
+            }
+            TABLE.remove(k);
+            KWS.setRelease(BY_ID, r, null);
+            FREE.set(r);
+            size--;
+
+            // trailing free ids are dropped, so max index goes down
+            int maxId = INSTANCE.maxId;
+            while (maxId > 0 && FREE.get(maxId)) {
+                FREE.clear(maxId--);
+            }
+            INSTANCE = new KwMapper(maxId, INSTANCE.epoch + 1);
+            return true;
+        }
+    }
+
+    /**
+     * Returns amount of registered (not retired) keywords.
+     */
+    public static int size() {
+        synchronized (LOCK) {
+            return size;
+        }
     }
 
     public static KwMapper getInstance() {
-        return INSTANCE.get();
+        return INSTANCE;
     }
 }
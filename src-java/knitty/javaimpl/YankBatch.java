@@ -0,0 +1,180 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+import clojure.lang.AFn;
+import clojure.lang.ILookup;
+import clojure.lang.LazilyPersistentVector;
+
+public final class YankBatch {
+
+    private static final VarHandle PENDING;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            PENDING = l.findVarHandle(YankBatch.class, "_pending", int.class);
+        } catch (ReflectiveOperationException var1) {
+            throw new ExceptionInInitializerError(var1);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private volatile int _pending;
+
+    private final Object[] inputs;
+    private final YankPlan plan;
+    private final ExecutionPool pool;
+    private final ILookup executors;
+    private final Object bframe;
+    private final boolean preload;
+    private final int chunkSize;
+    private final int maxDepth;
+
+    private final KDeferred[] results;
+    private final KDeferred res;
+
+    private final class ChunkFn extends AFn {
+
+        private final int from;
+        private final int to;
+
+        private ChunkFn(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Object invoke() {
+            // coalesce calls to batched yarns from the whole chunk
+            Object w = YarnBatcher.openWindow();
+            try {
+                for (int i = from; i < to; i++) {
+                    KDeferred r = results[i];
+                    if (r.realized()) {
+                        // batch is already failed or cancelled
+                        continue;
+                    }
+                    YankCtx ctx;
+                    try {
+                        ctx = YankCtx.create(inputs[i], plan, pool, executors, preload, bframe);
+                        if (maxDepth >= 0) {
+                            ctx.maxRecursionDepth(maxDepth);
+                        }
+                    } catch (Throwable t) {
+                        r.error(t, null);
+                        continue;
+                    }
+                    ctx.yankInline(plan, r);
+                }
+            } finally {
+                YarnBatcher.closeWindow(w);
+            }
+            return null;
+        }
+    }
+
+    private final class StartFn extends AFn {
+        @Override
+        public Object invoke() {
+            int n = results.length;
+            // current thread takes the first chunk, all others are forked
+            for (int i = chunkSize; i < n; i += chunkSize) {
+                pool.fork(new ChunkFn(i, Math.min(n, i + chunkSize)));
+            }
+            new ChunkFn(0, Math.min(n, chunkSize)).invoke();
+            return null;
+        }
+    }
+
+    private final class ItemLs extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+            if ((int) PENDING.getAndAdd(YankBatch.this, -1) == 1) {
+                complete();
+            }
+        }
+
+        @Override
+        public void error(Object e) {
+            res.error(e, null);
+        }
+    }
+
+    private final class BatchCanceller extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+        }
+
+        @Override
+        public void error(Object e) {
+            CancellationException ex = new RevokeException("yank batch is cancelled");
+            if (e instanceof Throwable) {
+                ex.addSuppressed((Throwable) e);
+            }
+            // each context listens its own result and cancels itself
+            for (KDeferred r : results) {
+                r.error(ex, null);
+            }
+        }
+    }
+
+    private YankBatch(Object[] inputs, YankPlan plan, ExecutionPool pool, ILookup executors, Object bframe, boolean preload, int chunkSize, int maxDepth) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        this.inputs = inputs;
+        this.plan = plan;
+        this.pool = pool;
+        this.executors = executors;
+        this.bframe = bframe;
+        this.preload = preload;
+        this.chunkSize = chunkSize;
+        this.maxDepth = maxDepth;
+        this.results = new KDeferred[inputs.length];
+        this.res = KDeferred.create();
+        this._pending = inputs.length;
+    }
+
+    public static KDeferred yank(Object[] inputs, YankPlan plan, Executor executor, ILookup executors, boolean preload, Object bframe, int chunkSize, int maxDepth) {
+        YankBatch b = new YankBatch(inputs, plan, ExecutionPool.adapt(executor, bframe), executors, bframe, preload, chunkSize, maxDepth);
+        return b.start();
+    }
+
+    private KDeferred start() {
+        int n = results.length;
+        if (n == 0) {
+            res.success(LazilyPersistentVector.createOwning(), null);
+            return res;
+        }
+
+        for (int i = 0; i < n; i++) {
+            KDeferred r = KDeferred.create();
+            // listeners are linked into a list, so each deferred needs its own instance
+            r.listen0(new ItemLs());
+            results[i] = r;
+        }
+
+        res.listen0(new BatchCanceller());
+        this.pool.run(new StartFn());
+        return res;
+    }
+
+    private void complete() {
+        Object[] rs = new Object[results.length];
+        try {
+            for (int i = 0; i < rs.length; i++) {
+                // materialized, so batch results don't retain yank contexts
+                rs[i] = ((YankResult) results[i].getRaw()).toAssociative();
+            }
+        } catch (Throwable e) {
+            res.error(e, null);
+            return;
+        }
+        res.success(LazilyPersistentVector.createOwning(rs), null);
+    }
+}
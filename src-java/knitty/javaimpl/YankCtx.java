@@ -2,17 +2,24 @@ package knitty.javaimpl;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 
 import clojure.lang.AFn;
 import clojure.lang.Associative;
 import clojure.lang.ExceptionInfo;
 import clojure.lang.IExceptionInfo;
+import clojure.lang.ILookup;
 import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
 import clojure.lang.Keyword;
 import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+import clojure.lang.Var;
+import manifold.deferred.IDeferred;
 
 public final class YankCtx {
 
@@ -23,6 +30,17 @@ public final class YankCtx {
     private static final Keyword KNITTY_YANK_ERROR   = Keyword.intern("knitty", "yank-error?");
 
     private static final Object NONE = new Object();
+
+    // inline cells - slot holds the value itself (NIL for null) or CLAIMED while the yarn is computed,
+    // it is replaced by a deferred only when one is requested (async result, error, ^:defer, roots...)
+    static final Object CLAIMED = new Object();
+    static final Object NIL = new Object();
+
+    // realized deferred, awaited in place of values of inline cells
+    private static final KDeferred READY = KDeferred.wrapVal(null);
+
+    // nesting depth of yarn invocations on the current thread, used only when recursion depth is bounded
+    private static final ThreadLocal<int[]> DEPTH = ThreadLocal.withInitial(() -> new int[1]);
     private static final Keyword KEYFN = Keyword.intern("key");
 
     static final int ASHIFT = 5;
@@ -32,11 +50,17 @@ public final class YankCtx {
     private static final VarHandle AR0 = MethodHandles.arrayElementVarHandle(KDeferred[][].class);
     private static final VarHandle AR1 = MethodHandles.arrayElementVarHandle(KDeferred[].class);
     private static final VarHandle YSC = MethodHandles.arrayElementVarHandle(AFn[].class);
+    private static final VarHandle ALOG = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
     private static final VarHandle ADDED;
+    private static final VarHandle ADDED_CNT;
+    private static final VarHandle OVERFLOW;
     static {
         try {
             MethodHandles.Lookup l = MethodHandles.lookup();
             ADDED = l.findVarHandle(YankCtx.class, "_added", KVCons.class);
+            ADDED_CNT = l.findVarHandle(YankCtx.class, "_addedCnt", int.class);
+            OVERFLOW = l.findVarHandle(YankCtx.class, "_overflow", KDeferred[][].class);
         } catch (ReflectiveOperationException var1) {
             throw new ExceptionInInitializerError(var1);
         }
@@ -45,35 +69,214 @@ public final class YankCtx {
     @SuppressWarnings("unused")
     private volatile KVCons _added = KVCons.NIL;
 
+    // dense mode - log of added slots (1 + slot index), negative count means 'frozen'
+    @SuppressWarnings("unused")
+    private volatile int _addedCnt;
+    private final int[] addedLog;
+
+    // sparse table, indexed by global keyword index
     private final KDeferred[][] a0;
 
+    @SuppressWarnings("unused")
+    private volatile KDeferred[][] _overflow;
+
+    // dense mode - only nodes known by the plan (or registry layout), indexed by local index,
+    // slot holds a KDeferred or an inline cell value (only when 'cells' flag is set for the slot)
+    private final Object[] slots;
+    private final boolean[] cells;
+    private final int[] local;
+    private final Keyword[] slotKeys;
+
     private final YankInputs inputs;
     private final AFn[] yarnsCache;
     private final YarnProvider yankerProvider;
     private final KwMapper kwMapper;
     private final boolean loadInputs;
 
+    // indexes compiled into yarns may be stale once any keyword was retired
+    private final boolean checkIds;
+
     public final ExecutionPool pool;
+    private final Object bframe;
+
+    // named executors, resolved once when context is created
+    private final Object[] poolNames;
+    private final ExecutionPool[] namedPools;
     public final Object tracer;
     public final Object token;
 
+    // max nesting of yarn invocations on one thread, deeper yarns are forked; -1 means unbounded
+    private int maxDepth = -1;
+
+    // System.nanoTime() after which yarns are not started
+    private long deadline;
+    private boolean hasDeadline;
+    private volatile KTimer.Timeout deadlineTimeout;
+
     private final class DoYankFn extends AFn {
 
         private final Iterable<?> yarns;
+        private final YankPlan plan;
         private final KDeferred res;
 
-        private DoYankFn(Iterable<?> yarns, KDeferred res) {
+        private DoYankFn(Iterable<?> yarns, YankPlan plan, KDeferred res) {
             this.yarns = yarns;
+            this.plan = plan;
             this.res = res;
         }
 
         @Override
         public Object invoke() {
             try {
-                doYank(yarns, res);
+                if (plan != null) {
+                    doYank(plan, res);
+                } else {
+                    doYank(yarns, res);
+                }
             } catch (Throwable t) {
-                res.fireError(wrapYankErr(t, yarns));
+                res.fireError(wrapYankErr(t, plan != null ? plan.yarns : yarns));
+            }
+            return null;
+        }
+    }
+
+    private final class ForkedYarnFn extends AFn implements ExecutionPool.Cancellable {
+
+        private final AFn yarn;
+        private final KDeferred d;
+        private final int slot;  // inline cell, when 'd' is null
+
+        private ForkedYarnFn(AFn yarn, KDeferred d, int slot) {
+            this.yarn = yarn;
+            this.d = d;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object invoke() {
+            int[] depth = DEPTH.get();
+            int saved = depth[0];
+            depth[0] = 0;
+            try {
+                yarn.invoke(YankCtx.this, d);
+            } catch (Throwable e) {
+                (d != null ? d : deferredSlot(slot)).error(e, token);
+            } finally {
+                depth[0] = saved;
+            }
+            return null;
+        }
+
+        @Override
+        public void cancel(CancellationException e) {
+            (d != null ? d : deferredSlot(slot)).error(e, token);
+        }
+    }
+
+    // fetches '^:fork' dependency, deferred is pulled (but not owned) before the task is forked
+    private final class ForkedFetchFn extends AFn implements ExecutionPool.Cancellable {
+
+        private final int i;
+        private final Keyword k;
+        private final KDeferred d;
+
+        private ForkedFetchFn(int i, Keyword k, KDeferred d) {
+            this.i = i;
+            this.k = k;
+            this.d = d;
+        }
+
+        @Override
+        public Object invoke() {
+            fetch(i, k);
+            return null;
+        }
+
+        @Override
+        public void cancel(CancellationException e) {
+            if (d.own()) {
+                d.error(e, token);
             }
+        }
+    }
+
+    // body of a forked yarn, 'd' is null for inline cells
+    private final class ForkedNodeFn extends AFn implements ExecutionPool.Cancellable {
+
+        private final AFn fn;
+        private final int i;
+        private final Keyword k;
+        private final KDeferred d;
+
+        private ForkedNodeFn(AFn fn, int i, Keyword k, KDeferred d) {
+            this.fn = fn;
+            this.i = i;
+            this.k = k;
+            this.d = d;
+        }
+
+        @Override
+        public Object invoke() {
+            return fn.invoke();
+        }
+
+        @Override
+        public void cancel(CancellationException e) {
+            if (d != null) {
+                d.fireError(e, token);
+            } else {
+                putError(i, k, e);
+            }
+        }
+    }
+
+    private final class ForkedContFn extends AFn implements ExecutionPool.Cancellable {
+
+        private final AFn cont;
+        private final Object error;
+
+        private ForkedContFn(AFn cont, Object error) {
+            this.cont = cont;
+            this.error = error;
+        }
+
+        @Override
+        public Object invoke() {
+            int[] depth = DEPTH.get();
+            int saved = depth[0];
+            depth[0] = 0;
+            try {
+                invokeCont(cont, error);
+            } finally {
+                depth[0] = saved;
+            }
+            return null;
+        }
+
+        @Override
+        public void cancel(CancellationException e) {
+            // yarn fails its deferred
+            invokeCont(cont, e);
+        }
+    }
+
+    private final class ResumeFn extends AFn {
+
+        private final AFn cont;
+
+        private ResumeFn(AFn cont) {
+            this.cont = cont;
+        }
+
+        @Override
+        public Object invoke() {
+            resume(cont, NONE);
+            return null;
+        }
+
+        @Override
+        public Object invoke(Object e) {
+            resume(cont, e);
             return null;
         }
     }
@@ -81,9 +284,9 @@ public final class YankCtx {
     private final class YankDoneLs extends AFn {
 
         private final KDeferred res;
-        private final Iterable<?> yarns;
+        private final Object yarns;
 
-        private YankDoneLs(KDeferred res, Iterable<?> yarns) {
+        private YankDoneLs(KDeferred res, Object yarns) {
             this.res = res;
             this.yarns = yarns;
         }
@@ -121,7 +324,30 @@ public final class YankCtx {
     }
 
     public static YankCtx create(Object inputs, YarnProvider yp, Executor executor, Object tracer, boolean preloadInputs, Object bframe) {
-        ExecutionPool pool = ExecutionPool.adapt(executor, bframe);
+        return create(inputs, yp, executor, null, tracer, preloadInputs, bframe);
+    }
+
+    public static YankCtx create(Object inputs, YankPlan plan, Executor executor, Object tracer, boolean preloadInputs, Object bframe) {
+        return create(inputs, plan, executor, null, tracer, preloadInputs, bframe);
+    }
+
+    public static YankCtx create(Object inputs, YarnProvider yp, Executor executor, ILookup executors, Object tracer, boolean preloadInputs, Object bframe) {
+        return create(inputs, yp, null, ExecutionPool.adapt(executor, bframe), executors, tracer, preloadInputs, bframe);
+    }
+
+    public static YankCtx create(Object inputs, YankPlan plan, Executor executor, ILookup executors, Object tracer, boolean preloadInputs, Object bframe) {
+        return create(inputs, plan.registry, plan, ExecutionPool.adapt(executor, bframe), executors, tracer, preloadInputs, bframe);
+    }
+
+    static YankCtx create(Object inputs, YankPlan plan, ExecutionPool pool, ILookup executors, boolean preloadInputs, Object bframe) {
+        return create(inputs, plan.registry, plan, pool, executors, null, preloadInputs, bframe);
+    }
+
+    private static YankCtx create(
+        Object inputs, YarnProvider yp, YankPlan plan,
+        ExecutionPool pool, ILookup executors,
+        Object tracer, boolean preloadInputs, Object bframe
+    ) {
         YankInputs yinputs;
 
         if (inputs instanceof YankInputs) {
@@ -132,7 +358,7 @@ public final class YankCtx {
             throw new IllegalArgumentException("yank input must implement clojure.lang.Associative");
         }
 
-        YankCtx ctx = new YankCtx(yinputs, yp, pool, tracer, preloadInputs);
+        YankCtx ctx = new YankCtx(yinputs, yp, plan, pool, executors, bframe, tracer, preloadInputs);
         if (preloadInputs) {
             preloadInputs(yinputs, ctx);
         }
@@ -147,10 +373,17 @@ public final class YankCtx {
             public Object invoke(Object _a, Object k, Object v) {
                 if (k instanceof Keyword) {
                     int i = kwMapper.resolveByKeyword((Keyword) k);
-                    if (i != -1) {
-                        KDeferred d = ctx.pull(i);
-                        if (d.own()) {
-                            d.chain(v, ctx.token);
+                    if (i != -1 && ctx.isKnownNode(i)) {
+                        int s = ctx.cellSlot(i);
+                        if (s >= 0) {
+                            if (SLOT.compareAndSet(ctx.slots, s, null, CLAIMED)) {
+                                ctx.completeSlot(s, v);
+                            }
+                        } else {
+                            KDeferred d = ctx.pull(i);
+                            if (d.own()) {
+                                d.chain(v, ctx.token);
+                            }
                         }
                     }
                 }
@@ -159,13 +392,58 @@ public final class YankCtx {
         }, null);
     }
 
-    private YankCtx(YankInputs inputs, YarnProvider yp, ExecutionPool pool, Object tracer, boolean preloadInputs) {
+    private YankCtx(
+        YankInputs inputs, YarnProvider yp, YankPlan plan,
+        ExecutionPool pool, ILookup executors, Object bframe,
+        Object tracer, boolean preloadInputs
+    ) {
         this.kwMapper = KwMapper.getInstance();
-        this.a0 = new KDeferred[((kwMapper.maxIndex() + ASIZE) >> ASHIFT)][];
+        this.checkIds = kwMapper.epoch() != 0;
+        YankLayout layout;
+        if (plan != null) {
+            plan.checkIndexes(kwMapper);
+            this.local = plan.local;
+            this.slots = new Object[plan.closure.length];
+            this.cells = plan.cells;
+            this.slotKeys = plan.closureKeys;
+            this.addedLog = new int[plan.closure.length];
+            this.a0 = null;
+        } else if ((layout = yp.layout()) != null) {
+            // registry-scoped dense mode, nodes outside of the registry go to the overflow table
+            layout.checkIndexes(kwMapper);
+            this.local = layout.local;
+            this.slots = new Object[layout.keys.length];
+            this.cells = null;
+            this.slotKeys = layout.keys;
+            this.addedLog = new int[layout.keys.length];
+            this.a0 = null;
+        } else {
+            this.local = null;
+            this.slots = null;
+            this.cells = null;
+            this.slotKeys = null;
+            this.addedLog = null;
+            this.a0 = newTable();
+        }
         this.inputs = inputs;
         this.yarnsCache = yp.ycache();
         this.yankerProvider = yp;
         this.pool = pool;
+        if (executors != null && RT.count(executors) != 0) {
+            int n = RT.count(executors);
+            this.poolNames = new Object[n];
+            this.namedPools = new ExecutionPool[n];
+            int j = 0;
+            for (ISeq es = RT.seq(executors); es != null; es = es.next(), j++) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) es.first();
+                poolNames[j] = e.getKey();
+                namedPools[j] = e.getValue() instanceof Executor ? ExecutionPool.adapt((Executor) e.getValue(), bframe) : pool;
+            }
+        } else {
+            this.poolNames = null;
+            this.namedPools = null;
+        }
+        this.bframe = bframe;
         this.tracer = tracer;
         this.token = new Object();
         this.loadInputs = !preloadInputs;
@@ -232,15 +510,73 @@ public final class YankCtx {
         }
     }
 
+    void doYank(YankPlan plan, KDeferred res) {
+
+        AFn ls = new YankDoneLs(res, plan.yarns);
+        KAwaiter ka = KAwaiter.start(ls);
+
+        if (plan.driver != null) {
+            plan.driver.invoke(this);
+        }
+
+        int[] idxs = plan.idxs;
+        for (int j = 0; j < idxs.length; j++) {
+            ka.add(this.fetch(idxs[j], plan.keys[j], plan.fns[j]));
+        }
+
+        if (ka.await()) {
+            res.success(finish(), null);
+        }
+    }
+
     public KDeferred yank(Iterable<?> yarns) {
         Objects.requireNonNull(yarns);
         KDeferred res = KDeferred.create();
-        this.pool.run(new DoYankFn(yarns, res));
+        // listen before the yank is started, synchronous yank cancels its deadline too
         res.listen0(canceller());
+        startDeadline(res);
+        this.pool.run(new DoYankFn(yarns, null, res));
         return res;
     }
 
-    private KDeferred[] pullChunk(int i0) {
+    public KDeferred yank(YankPlan plan) {
+        Objects.requireNonNull(plan);
+        KDeferred res = KDeferred.create();
+        // listen before the yank is started, synchronous yank cancels its deadline too
+        res.listen0(canceller());
+        startDeadline(res);
+        this.pool.run(new DoYankFn(null, plan, res));
+        return res;
+    }
+
+    // runs yank on the current thread, used by YankBatch
+    void yankInline(YankPlan plan, KDeferred res) {
+        res.listen0(canceller());
+        try {
+            doYank(plan, res);
+        } catch (Throwable t) {
+            if (!res.realized()) {
+                res.error(wrapYankErr(t, plan.yarns), null);
+            }
+        }
+    }
+
+    private KDeferred[][] newTable() {
+        return new KDeferred[((kwMapper.maxIndex() + ASIZE) >> ASHIFT)][];
+    }
+
+    private KDeferred[][] overflow() {
+        KDeferred[][] a = (KDeferred[][]) OVERFLOW.getAcquire(this);
+        if (a != null) {
+            return a;
+        }
+        // node outside of the plan (e.g. yarn method added after the plan was compiled)
+        KDeferred[][] a1 = newTable();
+        a = (KDeferred[][]) OVERFLOW.compareAndExchangeRelease(this, null, a1);
+        return a == null ? a1 : a;
+    }
+
+    private KDeferred[] pullChunk(KDeferred[][] a0, int i0) {
         KDeferred[] a11 = new KDeferred[ASIZE];
         KDeferred[] res;
         do {
@@ -251,14 +587,64 @@ public final class YankCtx {
         return res;
     }
 
+    public final boolean hasInputs() {
+        return inputs.count() != 0;
+    }
+
+    public final boolean hasInput(int i, Keyword k) {
+        return inputs.get(i, k, NONE) != NONE;
+    }
+
+    /**
+     * Forks body of yarn 'k' (with ':fork' or ':executor' option) into the pool, cancelled pool fails the node.
+     */
+    public final void forkNode(ExecutionPool p, int i, Keyword k, KDeferred d, AFn fn) {
+        p.fork(new ForkedNodeFn(fn, i, k, d));
+    }
+
+    /**
+     * Fetches node 'i' on the pool, unless it is already owned (used by '^:fork' dependencies).
+     */
+    public final KDeferred forkFetch(int i, Keyword k) {
+        KDeferred d = pull(i, k);
+        if (!d.owned()) {
+            pool.fork(new ForkedFetchFn(i, k, d));
+        }
+        return d;
+    }
+
+    /**
+     * Like 'pull', but checks that index 'i' belongs to keyword 'k' (used by yarns).
+     */
+    public final KDeferred pull(int i, Keyword k) {
+        if (checkIds) {
+            kwMapper.checkIndex(i, k);
+        }
+        return pull(i);
+    }
+
     public final KDeferred pull(int i) {
+        int[] lc = this.local;
+        if (lc != null) {
+            int j;
+            if (i < lc.length && (j = lc[i]) != 0) {
+                return deferredSlot(j - 1);
+            }
+            return pullSparse(overflow(), i);
+        }
+        return pullSparse(a0, i);
+    }
+
+    private KDeferred pullSparse(KDeferred[][] a0, int i) {
         int i0 = i >> ASHIFT;
         KDeferred[] a1 = (KDeferred[]) AR0.getOpaque(a0, i0);
         if (a1 == null) {
-            a1 = this.pullChunk(i0);
+            a1 = this.pullChunk(a0, i0);
         }
+        return pullSlot(a1, i & AMASK);
+    }
 
-        int i1 = i & AMASK;
+    private KDeferred pullSlot(KDeferred[] a1, int i1) {
         KDeferred v = (KDeferred) AR1.getOpaque(a1, i1);
         if (v != null) {
             return v;
@@ -274,13 +660,266 @@ public final class YankCtx {
         return r;
     }
 
+    // returns deferred of the dense slot, value of inline cell is moved into the deferred
+    private KDeferred deferredSlot(int s) {
+        Object[] a = slots;
+        while (true) {
+            Object x = SLOT.getAcquire(a, s);
+            if (x instanceof KDeferred) {
+                return (KDeferred) x;
+            }
+            KDeferred d = KDeferred.create(token);
+            if (x == CLAIMED) {
+                d.own();
+            } else if (x != null) {
+                d.own();
+                d.success(x == NIL ? null : x, token);
+            }
+            if (SLOT.compareAndSet(a, s, x, d)) {
+                return d;
+            }
+        }
+    }
+
+    // returns slot of inline cell for node 'i' or -1
+    private int cellSlot(int i) {
+        boolean[] cs = cells;
+        if (cs == null) {
+            return -1;
+        }
+        int j = localSlot(i);
+        return (j != 0 && cs[j - 1]) ? j - 1 : -1;
+    }
+
+    // realizes claimed inline cell
+    private void completeSlot(int s, Object x) {
+        if (x instanceof IDeferred) {
+            deferredSlot(s).chain(x, token);
+        } else if (!SLOT.compareAndSet(slots, s, CLAIMED, x == null ? NIL : x)) {
+            // deferred is requested by a dependent (or the yank is cancelled)
+            deferredSlot(s).fireValue(x, token);
+        }
+    }
+
+    // in dense mode inputs outside of the plan are not preloaded
+    private boolean isKnownNode(int i) {
+        int[] lc = this.local;
+        return lc == null || (i < lc.length && lc[i] != 0);
+    }
+
+    private int localSlot(int i) {
+        int[] lc = this.local;
+        return (lc != null && i < lc.length) ? lc[i] : 0;
+    }
+
+    /**
+     * Returns pool for the named executor, falls back to the main pool for unknown names.
+     */
+    public ExecutionPool pool(Object name) {
+        Object[] ns = poolNames;
+        if (ns != null) {
+            for (int j = 0; j < ns.length; j++) {
+                if (ns[j] == name) {
+                    return namedPools[j];
+                }
+            }
+        }
+        return pool;
+    }
+
     public Object token() {
         return token;
     }
 
-    private boolean fetch0(KDeferred d, int i, Keyword k) {
+    /**
+     * Bounds recursion depth of yarn invocations on a single thread: yarns fetched deeper than 'n'
+     * are forked into the pool and start on a fresh stack.  This is not a scheduler, branches
+     * nested no deeper than 'n' are still computed one by one on the calling thread, only forked
+     * ones may run in parallel.  Zero forks every dependency.  Must be called before the yank is started.
+     */
+    public YankCtx maxRecursionDepth(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("max recursion depth must not be negative");
+        }
+        // forked tasks are run inline by direct pool
+        if (!(pool instanceof ExecutionPool.DirectCallPool)) {
+            this.maxDepth = n;
+        }
+        return this;
+    }
+
+    /**
+     * Sets deadline of the yank (as returned by System.nanoTime).  Yarns are not started after
+     * the deadline, and unfinished yank is revoked.  Must be called before the yank is started.
+     */
+    public YankCtx deadline(long nanoTime) {
+        this.deadline = nanoTime;
+        this.hasDeadline = true;
+        return this;
+    }
+
+    private static final class DeadlineTask implements Runnable {
+
+        private final KDeferred res;
+
+        private DeadlineTask(KDeferred res) {
+            this.res = res;
+        }
+
+        @Override
+        public void run() {
+            // yank result listens its result and cancels itself
+            res.error(deadlineError(), null);
+        }
+    }
+
+    private static RevokeException deadlineError() {
+        return new RevokeException("yank deadline is exceeded", new TimeoutException());
+    }
+
+    private void startDeadline(KDeferred res) {
+        if (hasDeadline) {
+            deadlineTimeout = KTimer.getInstance().scheduleAt(deadline, new DeadlineTask(res));
+        }
+    }
+
+    private boolean deadlineExceeded(KDeferred d) {
+        if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            d.error(deadlineError(), token);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wraps continuation of a yarn (0/1-arg callback, called when its async dependencies are realized).
+     * Completion of a dependency resumes its dependents recursively, so continuations
+     * are forked when recursion depth is bounded and exceeded.  Yank bindings (e.g. the deadline)
+     * are installed for the continuation.  Continuation is returned as is when yank has
+     * neither max recursion depth nor deadline.
+     */
+    public AFn continuation(AFn cont) {
+        return (maxDepth < 0 && !hasDeadline) ? cont : new ResumeFn(cont);
+    }
+
+    private void resume(AFn cont, Object error) {
+        int fd = maxDepth;
+        if (fd < 0) {
+            invokeCont(cont, error);
+            return;
+        }
+        int[] depth = DEPTH.get();
+        if (depth[0] >= fd) {
+            pool.fork(new ForkedContFn(cont, error));
+        } else {
+            depth[0]++;
+            try {
+                invokeCont(cont, error);
+            } finally {
+                depth[0]--;
+            }
+        }
+    }
+
+    // continuation may be called by a foreign thread, so yank bindings are installed
+    private void invokeCont(AFn cont, Object error) {
+        Object bf = bframe;
+        Object f = null;
+        boolean swap = bf != null && (f = Var.getThreadBindingFrame()) != bf;
+        if (swap) {
+            Var.resetThreadBindingFrame(bf);
+        }
+        try {
+            if (error == NONE) {
+                cont.invoke();
+            } else {
+                cont.invoke(error);
+            }
+        } finally {
+            if (swap) {
+                Var.resetThreadBindingFrame(f);
+            }
+        }
+    }
+
+    private void invokeYarn(AFn y, KDeferred d) {
+        if (deadlineExceeded(d)) {
+            return;
+        }
+        invokeYarn0(y, d, -1);
+    }
+
+    // yarn of inline cell 's' is called without deferred, it puts its value with 'putValue'
+    private void invokeYarn0(AFn y, KDeferred d, int s) {
+        int fd = maxDepth;
+        if (fd < 0) {
+            y.invoke(this, d);
+            return;
+        }
+        int[] depth = DEPTH.get();
+        if (depth[0] >= fd) {
+            pool.fork(new ForkedYarnFn(y, d, s));
+        } else {
+            depth[0]++;
+            try {
+                y.invoke(this, d);
+            } finally {
+                depth[0]--;
+            }
+        }
+    }
 
+    private boolean logSlot(int j) {
+        int n;
+        while ((n = (int) ADDED_CNT.getAcquire(this)) >= 0) {
+            if (ADDED_CNT.weakCompareAndSetRelease(this, n, n + 1)) {
+                ALOG.setRelease(addedLog, n, j);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // computes inline cell, unless it is already claimed
+    private void fetchCell(int s, int i, Keyword k, AFn y) {
+        Object x0 = SLOT.getAcquire(slots, s);
+        if (x0 == null) {
+            if (SLOT.compareAndSet(slots, s, null, CLAIMED)) {
+                computeCell(s, i, k, y);
+                return;
+            }
+            x0 = SLOT.getAcquire(slots, s);
+        }
+        if (x0 instanceof KDeferred) {
+            // deferred was pulled before the cell is claimed (e.g. by ^:fork dependent)
+            KDeferred d = (KDeferred) x0;
+            if (d.own() && fetch0(d, i, k)) {
+                invokeYarn(y != null ? y : yarn(i), d);
+            }
+        }
+    }
+
+    private void computeCell(int s, int i, Keyword k, AFn y) {
         if (loadInputs) {
+            Object x = inputs.get(i, k, NONE);
+            if (x != NONE) {
+                completeSlot(s, x);
+                return;
+            }
+        }
+        if (!logSlot(s + 1)) {
+            deferredSlot(s).error(RevokeException.YANK_FINISHED, token);
+        } else if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            deferredSlot(s).error(deadlineError(), token);
+        } else {
+            invokeYarn0(y != null ? y : yarn(i), null, s);
+        }
+    }
+
+    private boolean fetch0(KDeferred d, int i, Keyword k) {
+
+        int j = localSlot(i);
+        if (loadInputs || (j == 0 && local != null)) {
             Object x = inputs.get(i, k, NONE);
             if (x != NONE) {
                 d.chain(x, token);
@@ -288,11 +927,18 @@ public final class YankCtx {
             }
         }
 
-        KVCons a;
-        while ((a = (KVCons) ADDED.getAcquire(this)) != null) {
-            if (ADDED.weakCompareAndSetRelease(this, a, new KVCons(a, k, d))) {
+        if (j != 0) {
+            // dense mode - no need to allocate a cons cell per node
+            if (logSlot(j)) {
                 return true;
             }
+        } else {
+            KVCons a;
+            while ((a = (KVCons) ADDED.getAcquire(this)) != null) {
+                if (ADDED.weakCompareAndSetRelease(this, a, new KVCons(a, k, d))) {
+                    return true;
+                }
+            }
         }
 
         d.error(RevokeException.YANK_FINISHED, token);
@@ -300,27 +946,95 @@ public final class YankCtx {
     }
 
     public final KDeferred fetch(int i, Keyword k, AFn y) {
+        if (checkIds) {
+            kwMapper.checkIndex(i, k);
+        }
+        int s = cellSlot(i);
+        if (s >= 0) {
+            fetchCell(s, i, k, y);
+            return deferredSlot(s);
+        }
         KDeferred d = pull(i);
         if (d.own() && fetch0(d, i, k)) {
-            y.invoke(this, d);
+            invokeYarn(y, d);
         }
         return d;
     }
 
     public final KDeferred fetch(int i, Keyword k) {
+        if (checkIds) {
+            kwMapper.checkIndex(i, k);
+        }
+        int s = cellSlot(i);
+        if (s >= 0) {
+            fetchCell(s, i, k, null);
+            return deferredSlot(s);
+        }
         KDeferred d = pull(i);
         if (d.own() && fetch0(d, i, k)) {
-            AFn y = this.yarn(i);
-            y.invoke(this, d);
+            invokeYarn(this.yarn(i), d);
         }
         return d;
     }
 
+    /**
+     * Like 'fetch', but returns value of inline cell as is, otherwise a deferred.
+     * Used by yarns for sync dependencies, see 'isReady', 'cellValue' & 'cellDeferred'.
+     */
+    public final Object fetchValue(int i, Keyword k) {
+        if (checkIds) {
+            kwMapper.checkIndex(i, k);
+        }
+        int s = cellSlot(i);
+        if (s < 0) {
+            return fetch(i, k);
+        }
+        fetchCell(s, i, k, null);
+        Object x = SLOT.getAcquire(slots, s);
+        if (x == NIL) {
+            return null;
+        } else if (x == CLAIMED) {
+            return deferredSlot(s);
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * Realizes inline cell of node 'i' with a value (or a deferred), called by yarns invoked without deferred.
+     */
+    public final void putValue(int i, Keyword k, Object x) {
+        if (checkIds) {
+            kwMapper.checkIndex(i, k);
+        }
+        completeSlot(localSlot(i) - 1, x);
+    }
+
+    public final void putError(int i, Keyword k, Object e) {
+        if (checkIds) {
+            kwMapper.checkIndex(i, k);
+        }
+        deferredSlot(localSlot(i) - 1).fireError(e, token);
+    }
+
+    public static boolean isReady(Object x) {
+        return !(x instanceof KDeferred) || ((KDeferred) x).succeeded == 1;
+    }
+
+    public static Object cellValue(Object x) {
+        return x instanceof KDeferred ? ((KDeferred) x).getRaw() : x;
+    }
+
+    public static KDeferred cellDeferred(Object x) {
+        return x instanceof KDeferred ? (KDeferred) x : READY;
+    }
+
     private AFn yarn(int i) {
         AFn y = (AFn) YSC.getAcquire(yarnsCache, i);
-        if (y != null) {
+        if (y != null && (!checkIds || KEYFN.invoke(y.invoke()) == kwMapper.resolveByIndex(i))) {
             return y;
         }
+        // cache of a registry may still hold the yarn of retired keyword
         y = yankerProvider.yarn(this.kwMapper.resolveByIndex(i));
         YSC.setRelease(yarnsCache, i, y);
         return y;
@@ -338,18 +1052,50 @@ public final class YankCtx {
         return a;
     }
 
+    private int freezeLog() {
+        if (addedLog == null) {
+            return 0;
+        }
+        int n = (int) ADDED_CNT.getAndSet(this, -1);
+        for (int k = 0; k < n; k++) {
+            // slot is reserved, but not written yet
+            while ((int) ALOG.getAcquire(addedLog, k) == 0) {
+                Thread.onSpinWait();
+            }
+        }
+        return n;
+    }
+
     boolean isFrozen() {
         return ((KVCons) ADDED.getOpaque(this)) == null;
     }
 
     YankResult finish() {
         KVCons added0 = this.freeze();
+        int logSize = this.freezeLog();
         for (KVCons a = added0; a.d != null; a = a.next) {
             if (a.d.own()) {
                 a.d.error(RevokeException.DEFERRED_REVOKED, this.token);
             }
         }
-        return new YankResult(inputs, a0, added0, kwMapper);
+        for (int k = 0; k < logSize; k++) {
+            int s = addedLog[k] - 1;
+            Object x = SLOT.getAcquire(slots, s);
+            if (x == CLAIMED) {
+                // still computed, result holds its deferred
+                deferredSlot(s);
+            } else if (x instanceof KDeferred) {
+                KDeferred d = (KDeferred) x;
+                if (d.own()) {
+                    d.error(RevokeException.DEFERRED_REVOKED, this.token);
+                }
+            }
+        }
+        return new YankResult(
+            inputs,
+            a0 != null ? a0 : (KDeferred[][]) OVERFLOW.getAcquire(this),
+            slots, local, slotKeys, addedLog, logSize,
+            added0, kwMapper);
     }
 
     KDeferred.AListener canceller() {
@@ -357,12 +1103,14 @@ public final class YankCtx {
 
             @Override
             public void success(Object _v) {
+                cancelDeadline();
                 if (!isFrozen()) {
                     cancel(null);
                 }
             }
             @Override
             public void error(Object e) {
+                cancelDeadline();
                 if (!isFrozen()) {
                     Throwable t;
                     try {
@@ -376,13 +1124,37 @@ public final class YankCtx {
         };
     }
 
+    private void cancelDeadline() {
+        KTimer.Timeout t = deadlineTimeout;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
     public void cancel(Throwable cause) {
         CancellationException ex = new RevokeException("yankctx is cancelled");
         if (cause != null) {
             ex.addSuppressed(cause);
         }
-        for (KVCons a = this.freeze(); a.d != null; a = a.next) {
+        KVCons added0 = this.freeze();
+        int logSize = this.freezeLog();
+        for (KVCons a = added0; a.d != null; a = a.next) {
             a.d.error(ex, token);
         }
+        for (int k = 0; k < logSize; k++) {
+            int s = addedLog[k] - 1;
+            Object x = SLOT.getAcquire(slots, s);
+            if (x == CLAIMED || x instanceof KDeferred) {
+                deferredSlot(s).error(ex, token);
+            }
+        }
+        pool.cancel();
+        if (namedPools != null) {
+            for (ExecutionPool p : namedPools) {
+                if (p != pool) {
+                    p.cancel();
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,194 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+
+import clojure.lang.IFn;
+import clojure.lang.Util;
+
+public final class YankDedupe {
+
+    private static final ConcurrentHashMap<Key, Flight> FLIGHTS = new ConcurrentHashMap<>();
+
+    private YankDedupe() {}
+
+    private static final class Key {
+
+        final Object inputs;
+        final Object yarns;
+        final Object registry;
+        final Object opts;
+        final int hash;
+
+        Key(Object inputs, Object yarns, Object registry, Object opts) {
+            this.inputs = inputs;
+            this.yarns = yarns;
+            this.registry = registry;
+            this.opts = opts;
+            this.hash = 31 * (31 * (31 * Util.hasheq(inputs) + Util.hasheq(yarns)) + Util.hasheq(opts))
+                + System.identityHashCode(registry);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return hash == k.hash
+                && registry == k.registry
+                && Util.equiv(inputs, k.inputs)
+                && Util.equiv(yarns, k.yarns)
+                && Util.equiv(opts, k.opts);
+        }
+    }
+
+    private static final class Flight {
+
+        private static final VarHandle REFS;
+        static {
+            try {
+                MethodHandles.Lookup l = MethodHandles.lookup();
+                REFS = l.findVarHandle(Flight.class, "_refs", int.class);
+            } catch (ReflectiveOperationException var1) {
+                throw new ExceptionInInitializerError(var1);
+            }
+        }
+
+        // number of attached callers, 0 means 'all callers are gone'
+        @SuppressWarnings("unused")
+        private volatile int _refs = 1;
+
+        final Key key;
+        final KDeferred shared = KDeferred.create();
+        volatile KDeferred yank;
+
+        Flight(Key key) {
+            this.key = key;
+        }
+
+        boolean tryAttach() {
+            int n;
+            while ((n = (int) REFS.getAcquire(this)) > 0) {
+                if (REFS.weakCompareAndSetRelease(this, n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            if ((int) REFS.getAndAdd(this, -1) == 1) {
+                FLIGHTS.remove(key, this);
+                KDeferred y = yank;
+                if (y != null) {
+                    // yank context listens its result and cancels itself
+                    y.error(new RevokeException("yank is revoked by all callers"), null);
+                }
+            }
+        }
+
+        KDeferred caller() {
+            KDeferred c = KDeferred.create();
+            c.listen(new CallerLs(this));
+            c.chain(shared, null);
+            return c;
+        }
+    }
+
+    private static final class CallerLs extends KDeferred.AListener {
+
+        private final Flight flight;
+
+        CallerLs(Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public void success(Object x) {
+            done();
+        }
+
+        @Override
+        public void error(Object e) {
+            done();
+        }
+
+        private void done() {
+            if (!flight.shared.realized()) {
+                // caller's deferred is revoked before the yank is finished
+                flight.release();
+            }
+        }
+    }
+
+    private static final class FlightDoneLs extends KDeferred.AListener {
+
+        private final Flight flight;
+
+        FlightDoneLs(Flight flight) {
+            this.flight = flight;
+        }
+
+        // entry is removed before callers are notified
+        @Override
+        public void success(Object x) {
+            FLIGHTS.remove(flight.key, flight);
+            flight.shared.success(x, null);
+        }
+
+        @Override
+        public void error(Object e) {
+            FLIGHTS.remove(flight.key, flight);
+            flight.shared.error(e, null);
+        }
+    }
+
+    /**
+     * Attaches to the in-flight yank with equal inputs, yarns, options (anything affecting
+     * the computation, e.g. executors & thread bindings) and the same registry,
+     * or starts a new one by calling 'doYank'.  Shared yank is cancelled only when
+     * all attached callers revoke their deferreds.
+     */
+    public static KDeferred yank(Object inputs, Object yarns, Object registry, Object opts, IFn doYank) {
+        Key k = new Key(inputs, yarns, registry, opts);
+        while (true) {
+            Flight f = FLIGHTS.get(k);
+            if (f == null) {
+                Flight nf = new Flight(k);
+                f = FLIGHTS.putIfAbsent(k, nf);
+                if (f == null) {
+                    return start(nf, doYank);
+                }
+            }
+            if (f.tryAttach()) {
+                return f.caller();
+            }
+            // all callers are gone, flight is being cancelled
+            FLIGHTS.remove(k, f);
+        }
+    }
+
+    private static KDeferred start(Flight f, IFn doYank) {
+        KDeferred y;
+        try {
+            y = KDeferred.wrap(doYank.invoke());
+        } catch (Throwable t) {
+            FLIGHTS.remove(f.key, f);
+            f.shared.error(t, null);
+            throw t;
+        }
+        f.yank = y;
+        y.listen(new FlightDoneLs(f));
+        return f.caller();
+    }
+}
@@ -9,8 +9,11 @@ import clojure.lang.IReduceInit;
 import clojure.lang.Keyword;
 import clojure.lang.Seqable;
 
-abstract class YankInputs extends AFn implements IKVReduce, IReduceInit, ILookup, Iterable<Object>, Seqable, IMeta {
+// raw Iterable, as YankResult implements IPersistentMap
+@SuppressWarnings("rawtypes")
+abstract class YankInputs extends AFn implements IKVReduce, IReduceInit, ILookup, Iterable, Seqable, IMeta {
     public abstract Object get(int i, Keyword k, Object fallback);
+    public abstract int count();
     public abstract Associative toAssociative();
     public abstract Object unwrapInputs();
 }
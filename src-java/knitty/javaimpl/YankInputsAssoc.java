@@ -84,6 +84,11 @@ final class YankInputsAssoc extends YankInputs {
         return wrapped.seq();
     }
 
+    @Override
+    public int count() {
+        return RT.count(wrapped);
+    }
+
     @Override
     public Object unwrapInputs() {
         return wrapped;
@@ -0,0 +1,41 @@
+package knitty.javaimpl;
+
+import clojure.lang.Keyword;
+
+/**
+ * Compacted index of yarns known by a registry: yank contexts allocate one slot per yarn
+ * instead of sparse tables sized by the global keyword index.
+ */
+public final class YankLayout {
+
+    final Keyword[] keys;
+    final int[] ids;
+    final int[] local;
+
+    // epoch of KwMapper under which indexes were resolved (or last checked)
+    private volatile int epoch;
+
+    public YankLayout(Keyword[] keys) {
+        this.epoch = KwMapper.getInstance().epoch();
+        this.keys = keys;
+        this.ids = YankPlan.resolveIndexes(keys);
+        this.local = YankPlan.localIndexes(ids);
+    }
+
+    void checkIndexes(KwMapper kwMapper) {
+        int e = kwMapper.epoch();
+        if (e != epoch) {
+            kwMapper.checkIndexes(keys, ids);
+            epoch = e;
+        }
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public String toString() {
+        return "#knitty/YankLayout[" + keys.length + "]";
+    }
+}
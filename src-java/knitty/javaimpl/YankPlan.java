@@ -0,0 +1,116 @@
+package knitty.javaimpl;
+
+import clojure.lang.AFn;
+import clojure.lang.Keyword;
+
+public final class YankPlan {
+
+    public final YarnProvider registry;
+    public final Object yarns;
+    public final Keyword[] closureKeys;
+
+    // slots computed as inline cells (indexed as 'closureKeys'), null when plan does not use them
+    public final boolean[] cells;
+
+    final Keyword[] keys;
+    final int[] idxs;
+    final AFn[] fns;
+    final int[] closure;
+    final int[] local;
+
+    // invoked with YankCtx before the plan roots are fetched, see 'withDriver'
+    final AFn driver;
+
+    // epoch of KwMapper under which indexes were resolved (or last checked)
+    private volatile int epoch;
+
+    public YankPlan(YarnProvider registry, Object yarns, Keyword[] keys, AFn[] fns, Keyword[] closureKeys) {
+        this(registry, yarns, keys, fns, closureKeys, null);
+    }
+
+    public YankPlan(YarnProvider registry, Object yarns, Keyword[] keys, AFn[] fns, Keyword[] closureKeys, boolean[] cells) {
+        if (keys.length != fns.length) {
+            throw new IllegalArgumentException("yarn keys and fns must have the same length");
+        }
+        if (cells != null && cells.length != closureKeys.length) {
+            throw new IllegalArgumentException("cells and closure keys must have the same length");
+        }
+        this.cells = cells;
+        this.registry = registry;
+        this.yarns = yarns;
+        this.keys = keys;
+        this.fns = fns;
+        this.closureKeys = closureKeys;
+        this.idxs = resolveIndexes(keys);
+        this.epoch = KwMapper.getInstance().epoch();
+        this.closure = resolveIndexes(closureKeys);
+        this.local = localIndexes(closure);
+        this.driver = null;
+    }
+
+    private YankPlan(YankPlan plan, AFn driver) {
+        this.registry = plan.registry;
+        this.yarns = plan.yarns;
+        this.keys = plan.keys;
+        this.fns = plan.fns;
+        this.closureKeys = plan.closureKeys;
+        this.cells = plan.cells;
+        this.idxs = plan.idxs;
+        this.epoch = plan.epoch;
+        this.closure = plan.closure;
+        this.local = plan.local;
+        this.driver = driver;
+    }
+
+    /**
+     * Returns the same plan with a driver - fn of YankCtx, which is called before the roots are fetched.
+     * Driver may fetch nodes of the plan ahead (in topological order), so dependents find them computed.
+     */
+    public YankPlan withDriver(AFn driver) {
+        return new YankPlan(this, driver);
+    }
+
+    // plan compiled before keywords were retired must not be used with reused indexes
+    void checkIndexes(KwMapper kwMapper) {
+        int e = kwMapper.epoch();
+        if (e != epoch) {
+            kwMapper.checkIndexes(closureKeys, closure);
+            epoch = e;
+        }
+    }
+
+    // maps global keyword index to (1 + slot index), 0 means 'not in the plan'
+    static int[] localIndexes(int[] closure) {
+        int n = 0;
+        for (int i : closure) {
+            n = Math.max(n, i + 1);
+        }
+        int[] res = new int[n];
+        for (int j = 0; j < closure.length; j++) {
+            res[closure[j]] = j + 1;
+        }
+        return res;
+    }
+
+    static int[] resolveIndexes(Keyword[] ks) {
+        KwMapper kwMapper = KwMapper.getInstance();
+        int[] res = new int[ks.length];
+        for (int i = 0; i < ks.length; i++) {
+            int t = kwMapper.resolveByKeyword(ks[i]);
+            if (t == -1) {
+                throw new IllegalArgumentException("unknown yarn " + ks[i]);
+            }
+            res[i] = t;
+        }
+        return res;
+    }
+
+    public int size() {
+        return closure.length;
+    }
+
+    @Override
+    public String toString() {
+        return "#knitty/YankPlan" + yarns;
+    }
+}
@@ -2,43 +2,85 @@ package knitty.javaimpl;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
 
 import clojure.lang.AFn;
+import clojure.lang.APersistentMap;
 import clojure.lang.ASeq;
 import clojure.lang.Associative;
 import clojure.lang.Delay;
 import clojure.lang.IDeref;
 import clojure.lang.IEditableCollection;
 import clojure.lang.IFn;
+import clojure.lang.IHashEq;
 import clojure.lang.IMapEntry;
 import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
 import clojure.lang.ISeq;
 import clojure.lang.ITransientAssociative;
 import clojure.lang.Keyword;
 import clojure.lang.MapEntry;
+import clojure.lang.MapEquivalence;
+import clojure.lang.Murmur3;
 import clojure.lang.Obj;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
 import clojure.lang.RT;
 import clojure.lang.Reduced;
 import clojure.lang.Seqable;
+import clojure.lang.Util;
 import knitty.javaimpl.YankCtx.KVCons;
 
-public final class YankResult extends YankInputs implements IObj, IDeref {
+/**
+ * Result of yank, a persistent map view over the yank context and its inputs.
+ * Lookups go directly to the nodes, the map is not materialized until it is dereferenced.
+ * The view retains the whole yank context, so `yank` and `yank-batch` return materialized maps.
+ * Associated and dissociated keys are kept in a persistent overlay, the context is shared.
+ */
+public final class YankResult extends YankInputs implements IPersistentMap, Map<Object, Object>, MapEquivalence, IHashEq, IObj, IDeref {
+
+    // marks keys removed by 'without' in the overlay
+    private static final Object REMOVED = new Object();
+    private static final Object NONE = new Object();
 
     private static final int ASHIFT = YankCtx.ASHIFT;
     private static final int AMASK = YankCtx.AMASK;
 
     private static final VarHandle AR0 = MethodHandles.arrayElementVarHandle(KDeferred[][].class);
     private static final VarHandle AR1 = MethodHandles.arrayElementVarHandle(KDeferred[].class);
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
 
     final YankInputs inputs;
     final KDeferred[][] yrns;
+    final Object[] slots;
+    final int[] local;
+    final Keyword[] slotKeys;
+    final int[] log;
+    final int logSize;
     final YankCtx.KVCons added;
     final KwMapper kwmapper;
     final IPersistentMap meta;
 
+    // assoc'ed keys and REMOVED markers, null when result is not modified
+    final IPersistentMap overlay;
+
+    private volatile KVCons chain;
+    // indexes of added nodes, pulled but not computed nodes are not a part of the result
+    private volatile BitSet nodes;
+    private int count = -1;
+    private int hash;
+    private int hasheq;
+
     private final Delay mapDelay = new Delay(new AFn() {
         @Override
         public Object invoke() {
@@ -46,31 +88,89 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
         }
     });
 
-    protected YankResult(YankInputs inputs, KDeferred[][] yrns, YankCtx.KVCons added, KwMapper kwmapper) {
+    protected YankResult(
+        YankInputs inputs, KDeferred[][] yrns,
+        Object[] slots, int[] local, Keyword[] slotKeys, int[] log, int logSize,
+        YankCtx.KVCons added, KwMapper kwmapper
+    ) {
         this.inputs = inputs;
         this.yrns = yrns;
+        this.slots = slots;
+        this.local = local;
+        this.slotKeys = slotKeys;
+        this.log = log;
+        this.logSize = logSize;
         this.added = added;
         this.kwmapper = kwmapper;
         this.meta = inputs.meta();
+        this.overlay = null;
     }
 
-    private YankResult(YankInputs inputs, KDeferred[][] yrns, YankCtx.KVCons added, KwMapper kwmapper, IPersistentMap meta) {
-        this.inputs = inputs;
-        this.yrns = yrns;
-        this.added = added;
-        this.kwmapper = kwmapper;
+    private YankResult(YankResult r, IPersistentMap meta) {
+        this(r, meta, r.overlay, r.count);
+    }
+
+    private YankResult(YankResult r, IPersistentMap meta, IPersistentMap overlay, int count) {
+        this.inputs = r.inputs;
+        this.yrns = r.yrns;
+        this.slots = r.slots;
+        this.local = r.local;
+        this.slotKeys = r.slotKeys;
+        this.log = r.log;
+        this.logSize = r.logSize;
+        this.added = r.added;
+        this.kwmapper = r.kwmapper;
         this.meta = meta;
+        this.overlay = overlay;
+        this.chain = r.chain;
+        this.nodes = r.nodes;
+        this.count = count;
+    }
+
+    // dense mode does not keep cons cells for added nodes, restore them on demand
+    private KVCons chain() {
+        if (logSize == 0) {
+            return added;
+        }
+        KVCons c = chain;
+        if (c == null) {
+            c = added;
+            for (int k = 0; k < logSize; k++) {
+                int j = log[k] - 1;
+                Object x = slots[j];
+                c = new KVCons(c, slotKeys[j], x instanceof KDeferred ? (KDeferred) x : KDeferred.wrapVal(slotValue(x)));
+            }
+            chain = c;
+        }
+        return c;
     }
 
     Object toMap0() {
+        Object m = baseMap();
+        if (overlay != null) {
+            for (Object o : overlay) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getValue();
+                m = v == REMOVED ? RT.dissoc(m, e.getKey()) : RT.assoc(m, e.getKey(), v);
+            }
+        }
+        return m;
+    }
+
+    private Object baseMap() {
         KVCons added0 = added;
-        if (added0.next == null) {
+        if (added0.next == null && logSize == 0) {
             return inputs.toAssociative();
         }
         Object result;
         Associative ins = this.inputs.toAssociative();
-        if (added0.next.d != null && ins instanceof IEditableCollection) {
+        int cnt = logSize + (added0.next == null ? 0 : added0.next.d == null ? 1 : 2);
+        if (cnt > 1 && ins instanceof IEditableCollection) {
             ITransientAssociative t = (ITransientAssociative) ((IEditableCollection) ins).asTransient();
+            for (int k = 0; k < logSize; k++) {
+                int j = log[k] - 1;
+                t = t.assoc(slotKeys[j], slotValue(slots[j]));
+            }
             for (KVCons a = added0; a.d != null; a = a.next) {
                 t = t.assoc(a.k, a.d.unwrap());
             }
@@ -78,6 +178,10 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
         } else {
             Associative t = ins;
             Objects.requireNonNull(t);
+            for (int k = 0; k < logSize; k++) {
+                int j = log[k] - 1;
+                t = t.assoc(slotKeys[j], slotValue(slots[j]));
+            }
             for (KVCons a = added0; a.d != null; a = a.next) {
                 t = t.assoc(a.k, a.d.unwrap());
             }
@@ -104,19 +208,71 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     @Override
     public Iterator<Object> iterator() {
+        return overlay == null ? baseIterator() : new OverlayIterator(overlay, baseIterator());
+    }
+
+    private static final class OverlayIterator implements Iterator<Object> {
+
+        private final IPersistentMap overlay;
+        private final Iterator<?> overlayIter;
+        private final Iterator<?> baseIter;
+        private Object next;
+
+        OverlayIterator(IPersistentMap overlay, Iterator<?> baseIter) {
+            this.overlay = overlay;
+            this.overlayIter = overlay.iterator();
+            this.baseIter = baseIter;
+            advance();
+        }
+
+        private void advance() {
+            while (overlayIter.hasNext()) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) overlayIter.next();
+                if (e.getValue() != REMOVED) {
+                    next = e;
+                    return;
+                }
+            }
+            while (baseIter.hasNext()) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) baseIter.next();
+                if (!overlay.containsKey(e.getKey())) {
+                    next = e;
+                    return;
+                }
+            }
+            next = NONE;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != NONE;
+        }
+
+        @Override
+        public Object next() {
+            Object r = next;
+            if (r == NONE) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return r;
+        }
+    }
+
+    private Iterator<Object> baseIterator() {
         return new Iterator<Object>() {
 
             final Iterator<?> insIter = (Iterator<?>) RT.iter(inputs);
-            volatile YankCtx.KVCons kvcons = added;
+            volatile YankCtx.KVCons kvcons = chain();
 
             @Override
             public boolean hasNext() {
-                return kvcons.next != KVCons.NIL || insIter.hasNext();
+                return kvcons.d != null || insIter.hasNext();
             }
 
             @Override
             public Object next() {
-                if (kvcons.next != KVCons.NIL) {
+                if (kvcons.d != null) {
                     IMapEntry e = MapEntry.create(kvcons.k, kvcons.d.unwrap());
                     kvcons = kvcons.next;
                     return e;
@@ -174,7 +330,11 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     @Override
     public ISeq seq() {
-        return new YankResultSeq(added, null, inputs.seq());
+        if (overlay != null) {
+            return RT.chunkIteratorSeq(iterator());
+        }
+        KVCons c = chain();
+        return c.d == null ? inputs.seq() : new YankResultSeq(c, null, inputs);
     }
 
     @Override
@@ -184,11 +344,28 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     @Override
     public IObj withMeta(IPersistentMap meta) {
-        return new YankResult(inputs, yrns, added, kwmapper, meta);
+        return new YankResult(this, meta);
     }
 
     @Override
     public Object kvreduce(IFn f, Object a) {
+        if (overlay != null) {
+            for (Object o : this) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                a = f.invoke(a, e.getKey(), e.getValue());
+                if (a instanceof Reduced) {
+                    return ((IDeref) a).deref();
+                }
+            }
+            return a;
+        }
+        for (int k = logSize - 1; k >= 0; k--) {
+            int j = log[k] - 1;
+            a = f.invoke(a, slotKeys[j], slotValue(slots[j]));
+            if (a instanceof Reduced) {
+                return ((IDeref) a).deref();
+            }
+        }
         for (KVCons x = added; x.d != null; x = x.next) {
             a = f.invoke(a, x.k, x.d.unwrap());
             if (a instanceof Reduced) {
@@ -206,6 +383,22 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     @Override
     public Object reduce(IFn f, Object a) {
+        if (overlay != null) {
+            for (Object e : this) {
+                a = f.invoke(a, e);
+                if (a instanceof Reduced) {
+                    return ((IDeref) a).deref();
+                }
+            }
+            return a;
+        }
+        for (int k = logSize - 1; k >= 0; k--) {
+            int j = log[k] - 1;
+            a = f.invoke(a, MapEntry.create(slotKeys[j], slotValue(slots[j])));
+            if (a instanceof Reduced) {
+                return ((IDeref) a).deref();
+            }
+        }
         for (KVCons x = added; x.d != null; x = x.next) {
             a = f.invoke(a, MapEntry.create(x.k, x.d.unwrap()));
             if (a instanceof Reduced) {
@@ -223,47 +416,367 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     @Override
     public Object invoke() {
-	    return mapDelay.deref();
+        return mapDelay.deref();
     }
 
     @Override
-    public Object get(int i, Keyword k, Object fallback) {
+    public Object invoke(Object key) {
+        return valAt(key, null);
+    }
+
+    @Override
+    public Object invoke(Object key, Object notFound) {
+        return valAt(key, notFound);
+    }
+
+    // value of dense slot: deferred or inline cell
+    private static Object slotValue(Object x) {
+        if (x instanceof KDeferred) {
+            return ((KDeferred) x).unwrap();
+        }
+        return x == YankCtx.NIL ? null : x;
+    }
+
+    private BitSet nodes() {
+        BitSet b = nodes;
+        if (b == null) {
+            b = new BitSet();
+            for (int k = 0; k < logSize; k++) {
+                int i = kwmapper.resolveByKeyword(slotKeys[log[k] - 1]);
+                if (i != -1) {
+                    b.set(i);
+                }
+            }
+            for (KVCons a = added; a.d != null; a = a.next) {
+                int i = kwmapper.resolveByKeyword(a.k);
+                if (i != -1) {
+                    b.set(i);
+                }
+            }
+            nodes = b;
+        }
+        return b;
+    }
+
+    // returns deferred, inline cell value (see 'slotValue') or null for nodes absent in the result
+    private Object node(int i) {
+        if (!nodes().get(i)) {
+            return null;
+        }
+        int[] lc = local;
+        if (lc != null) {
+            int j;
+            if (i < lc.length && (j = lc[i]) != 0) {
+                Object x = SLOT.getAcquire(slots, j - 1);
+                // not logged cell - computation is started after the yank was finished
+                return x == YankCtx.CLAIMED ? null : x;
+            }
+        }
+        KDeferred[][] yrns0 = yrns;
+        if (yrns0 == null) {
+            return null;
+        }
         int i0 = i >> ASHIFT;
-        int i1 = i & AMASK;
-        KDeferred[] yrns1 = (KDeferred[]) AR0.getOpaque(yrns, i0);
-        if (yrns1 != null) {
-            KDeferred r = (KDeferred) AR1.getOpaque(yrns1, i1);
-            if (r != null) {
-                return r.unwrap();
+        if (i0 >= yrns0.length) {
+            return null;
+        }
+        KDeferred[] yrns1 = (KDeferred[]) AR0.getOpaque(yrns0, i0);
+        return yrns1 == null ? null : (KDeferred) AR1.getOpaque(yrns1, i & AMASK);
+    }
+
+    @Override
+    public Object get(int i, Keyword k, Object fallback) {
+        if (overlay != null) {
+            IMapEntry e = overlay.entryAt(k);
+            if (e != null) {
+                Object v = e.val();
+                return v == REMOVED ? fallback : v;
             }
         }
+        Object r = node(i);
+        if (r != null) {
+            return slotValue(r);
+        }
         return inputs.get(i, k, fallback);
     }
 
-    @Override
-    public Object valAt(Object key, Object notFound) {
+    private Object baseValAt(Object key, Object notFound) {
         if (key instanceof Keyword) {
             int i = kwmapper.resolveByKeyword((Keyword) key);
-            if (i == -1) {
-                return notFound;
-            }
-            int i0 = i >> ASHIFT;
-            int i1 = i & AMASK;
-            KDeferred[] yrns1 = (KDeferred[]) AR0.getOpaque(yrns, i0);
-            if (yrns1 == null) {
-                return notFound;
+            if (i != -1) {
+                Object r = node(i);
+                if (r != null) {
+                    return slotValue(r);
+                }
             }
-            KDeferred r = (KDeferred) AR1.getOpaque(yrns1, i1);
-            return r == null ? notFound : r.unwrap();
         }
         return inputs.valAt(key, notFound);
     }
 
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        if (overlay != null) {
+            IMapEntry e = overlay.entryAt(key);
+            if (e != null) {
+                Object v = e.val();
+                return v == REMOVED ? notFound : v;
+            }
+        }
+        return baseValAt(key, notFound);
+    }
+
     @Override
     public Object valAt(Object key) {
         return valAt(key, null);
     }
 
+    @Override
+    public boolean containsKey(Object key) {
+        return valAt(key, NONE) != NONE;
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        Object v = valAt(key, NONE);
+        return v == NONE ? null : MapEntry.create(key, v);
+    }
+
+    @Override
+    public int count() {
+        int c = count;
+        if (c < 0) {
+            c = inputs.count() + logSize;
+            for (KVCons a = added; a.d != null; a = a.next) {
+                c++;
+            }
+            count = c;
+        }
+        return c;
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object val) {
+        Object v = valAt(key, NONE);
+        if (v == val) {
+            return this;
+        }
+        IPersistentMap ov = overlay == null ? PersistentHashMap.EMPTY : overlay;
+        return new YankResult(this, meta, ov.assoc(key, val), v == NONE ? count() + 1 : count());
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object val) {
+        if (containsKey(key)) {
+            throw Util.runtimeException("Key already present");
+        }
+        return assoc(key, val);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        IPersistentMap ov = overlay == null ? PersistentHashMap.EMPTY : overlay;
+        ov = baseValAt(key, NONE) != NONE ? ov.assoc(key, REMOVED) : ov.without(key);
+        return new YankResult(this, meta, ov, count() - 1);
+    }
+
+    @Override
+    public IPersistentMap cons(Object o) {
+        if (o instanceof Map.Entry) {
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return assoc(e.getKey(), e.getValue());
+        } else if (o instanceof IPersistentVector) {
+            IPersistentVector v = (IPersistentVector) o;
+            if (v.count() != 2) {
+                throw new IllegalArgumentException("Vector arg to map conj must be a pair");
+            }
+            return assoc(v.nth(0), v.nth(1));
+        }
+        IPersistentMap r = this;
+        for (ISeq es = RT.seq(o); es != null; es = es.next()) {
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) es.first();
+            r = r.assoc(e.getKey(), e.getValue());
+        }
+        return r;
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return (IPersistentCollection) PersistentArrayMap.EMPTY.withMeta(meta);
+    }
+
+    @Override
+    public boolean equiv(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Map) || (o instanceof IPersistentMap && !(o instanceof MapEquivalence))) {
+            return false;
+        }
+        Map<?, ?> m = (Map<?, ?>) o;
+        if (m.size() != count()) {
+            return false;
+        }
+        for (Object x : this) {
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) x;
+            Object k = e.getKey();
+            if (!m.containsKey(k) || !Util.equiv(e.getValue(), m.get(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return APersistentMap.mapEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = hash = APersistentMap.mapHash(this);
+        }
+        return h;
+    }
+
+    @Override
+    public int hasheq() {
+        int h = hasheq;
+        if (h == 0) {
+            h = hasheq = Murmur3.hashUnordered(this);
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return RT.printString(this);
+    }
+
+    // java.util.Map
+
+    @Override
+    public int size() {
+        return count();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (Object x : this) {
+            if (Util.equals(value, ((Map.Entry<?, ?>) x).getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return valAt(key, null);
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putAll(Map<?, ?> m) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Object>>() {
+            @Override
+            public Iterator<Map.Entry<Object, Object>> iterator() {
+                return (Iterator<Map.Entry<Object, Object>>) (Iterator<?>) YankResult.this.iterator();
+            }
+
+            @Override
+            public int size() {
+                return count();
+            }
+        };
+    }
+
+    @Override
+    public Set<Object> keySet() {
+        return new AbstractSet<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                Iterator<Object> it = YankResult.this.iterator();
+                return new Iterator<Object>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        return ((Map.Entry<?, ?>) it.next()).getKey();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count();
+            }
+
+            @Override
+            public boolean contains(Object k) {
+                return containsKey(k);
+            }
+        };
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return new AbstractCollection<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                Iterator<Object> it = YankResult.this.iterator();
+                return new Iterator<Object>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        return ((Map.Entry<?, ?>) it.next()).getValue();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count();
+            }
+        };
+    }
+
     @Override
     public Object unwrapInputs() {
         return this;
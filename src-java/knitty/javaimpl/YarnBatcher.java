@@ -0,0 +1,243 @@
+package knitty.javaimpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.LazilyPersistentVector;
+
+public final class YarnBatcher {
+
+    private static final ThreadLocal<Window> WINDOW = new ThreadLocal<>();
+
+    private final Object key;
+    private final IFn batchFn;
+    private final int maxSize;
+    private final long windowMs;
+
+    private Batch pending;
+
+    private static final class Batch {
+
+        final ArrayList<Object> items = new ArrayList<>();
+        final ArrayList<KDeferred> results = new ArrayList<>();
+
+        void add(Object item, KDeferred d) {
+            items.add(item);
+            results.add(d);
+        }
+
+        int size() {
+            return items.size();
+        }
+    }
+
+    private static final class Window {
+
+        final ArrayList<YarnBatcher> batchers = new ArrayList<>();
+        final ArrayList<ExecutionPool> pools = new ArrayList<>();
+
+        void defer(YarnBatcher b, ExecutionPool pool) {
+            batchers.add(b);
+            pools.add(pool);
+        }
+
+        void close() {
+            for (int i = 0; i < batchers.size(); i++) {
+                pools.get(i).fork(batchers.get(i).new FlushFn(null));
+            }
+        }
+    }
+
+    private final class FlushFn extends AFn implements ExecutionPool.Cancellable {
+
+        private final Batch batch;
+
+        private FlushFn(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public Object invoke() {
+            Batch b = batch != null ? batch : takePending();
+            if (b != null) {
+                flush(b);
+            }
+            return null;
+        }
+
+        // batch may hold items of other yanks, so it is flushed by the calling thread
+        @Override
+        public void cancel(CancellationException e) {
+            invoke();
+        }
+    }
+
+    // closes collection window of the batch, unless it is already flushed (e.g. when it is full)
+    private final class WindowTask implements Runnable {
+
+        private final Batch batch;
+        private final ExecutionPool pool;
+
+        private WindowTask(Batch batch, ExecutionPool pool) {
+            this.batch = batch;
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            if (takePending(batch)) {
+                pool.fork(new FlushFn(batch));
+            }
+        }
+    }
+
+    private final class ResultLs extends KDeferred.AListener {
+
+        private final Batch batch;
+
+        private ResultLs(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void success(Object x) {
+            distribute(batch, x);
+        }
+
+        @Override
+        public void error(Object e) {
+            failAll(batch, e);
+        }
+    }
+
+    public YarnBatcher(Object key, IFn batchFn, Number maxSize) {
+        this(key, batchFn, maxSize, null);
+    }
+
+    /**
+     * Items submitted within 'windowMs' after the first item of a batch are coalesced into it.
+     * Without a window the batch is flushed as soon as the pool runs the flush task.
+     * Direct pool calls 'batchFn' of a windowed batch on the timer thread.
+     */
+    public YarnBatcher(Object key, IFn batchFn, Number maxSize, Number windowMs) {
+        this.key = key;
+        this.batchFn = batchFn;
+        this.maxSize = maxSize == null ? Integer.MAX_VALUE : maxSize.intValue();
+        this.windowMs = windowMs == null ? 0 : windowMs.longValue();
+        if (this.maxSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        if (this.windowMs < 0) {
+            throw new IllegalArgumentException("batch window must not be negative");
+        }
+    }
+
+    /**
+     * Opens batching window for the current thread - batches started inside the window
+     * are not flushed until the window is closed.  Returns previous window.
+     */
+    public static Object openWindow() {
+        Object w = WINDOW.get();
+        WINDOW.set(new Window());
+        return w;
+    }
+
+    public static void closeWindow(Object prev) {
+        Window w = WINDOW.get();
+        WINDOW.set((Window) prev);
+        if (w != null) {
+            w.close();
+        }
+    }
+
+    public KDeferred submit(Object item, ExecutionPool pool) {
+        KDeferred d = KDeferred.create();
+        Batch full = null;
+        Batch started = null;
+
+        synchronized (this) {
+            Batch b = pending;
+            if (b == null) {
+                b = new Batch();
+                pending = b;
+                started = b;
+            }
+            b.add(item, d);
+            if (b.size() >= maxSize) {
+                pending = null;
+                full = b;
+            }
+        }
+
+        if (full != null) {
+            pool.fork(new FlushFn(full));
+        } else if (started != null) {
+            Window w = WINDOW.get();
+            if (w != null) {
+                w.defer(this, pool);
+            } else if (windowMs > 0) {
+                // items from concurrent yanks are collected until the window is closed
+                KTimer.getInstance().schedule(windowMs, TimeUnit.MILLISECONDS, new WindowTask(started, pool));
+            } else {
+                // all items submitted before the task is executed are coalesced,
+                // direct pool runs the task inline, so only a window coalesces items
+                pool.fork(new FlushFn(null));
+            }
+        }
+        return d;
+    }
+
+    private synchronized Batch takePending() {
+        Batch b = pending;
+        pending = null;
+        return b;
+    }
+
+    private synchronized boolean takePending(Batch b) {
+        if (pending != b) {
+            return false;
+        }
+        pending = null;
+        return true;
+    }
+
+    private void flush(Batch b) {
+        Object r;
+        try {
+            r = batchFn.invoke(LazilyPersistentVector.create(b.items));
+        } catch (Throwable e) {
+            failAll(b, e);
+            return;
+        }
+        KDeferred.wrap(r).listen(new ResultLs(b));
+    }
+
+    private void distribute(Batch b, Object rs) {
+        List<?> xs;
+        if (rs instanceof List && ((List<?>) rs).size() == b.size()) {
+            xs = (List<?>) rs;
+        } else {
+            failAll(b, new IllegalStateException(
+                "batch-fn of " + key + " must return a sequential collection of " + b.size() + " items"));
+            return;
+        }
+        for (int i = 0; i < xs.size(); i++) {
+            b.results.get(i).chain(xs.get(i), null);
+        }
+    }
+
+    private void failAll(Batch b, Object e) {
+        for (KDeferred d : b.results) {
+            d.error(e, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "#knitty/YarnBatcher[" + key + "]";
+    }
+}
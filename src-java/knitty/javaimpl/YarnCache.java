@@ -0,0 +1,140 @@
+package knitty.javaimpl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+public final class YarnCache {
+
+    private static final Keyword KW_HITS = Keyword.intern("hits");
+    private static final Keyword KW_MISSES = Keyword.intern("misses");
+    private static final Keyword KW_EVICTIONS = Keyword.intern("evictions");
+    private static final Keyword KW_SIZE = Keyword.intern("size");
+
+    private final Object key;
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    // access-order map, guarded by 'this'
+    private final LinkedHashMap<Object, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+
+        final KDeferred value;
+        final long createdAt;
+
+        Entry(KDeferred value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final class RemoveOnError extends AFn {
+
+        private final Object k;
+        private final Entry e;
+
+        RemoveOnError(Object k, Entry e) {
+            this.k = k;
+            this.e = e;
+        }
+
+        @Override
+        public Object invoke(Object _err) {
+            synchronized (YarnCache.this) {
+                entries.remove(k, e);
+            }
+            return null;
+        }
+    }
+
+    public YarnCache(Object key, Number maxEntries, Number ttlMs) {
+        this.key = key;
+        this.maxEntries = maxEntries == null ? 10000 : maxEntries.intValue();
+        this.ttlNanos = ttlMs == null ? 0 : ttlMs.longValue() * 1_000_000L;
+        if (this.maxEntries <= 0) {
+            throw new IllegalArgumentException("max-entries must be positive");
+        }
+        if (this.ttlNanos < 0) {
+            throw new IllegalArgumentException("ttl-ms must not be negative");
+        }
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private boolean expired(Entry e, long now) {
+        return ttlNanos != 0 && now - e.createdAt >= ttlNanos;
+    }
+
+    /**
+     * Returns cached (possibly in-flight) result for key 'k' or calls 'compute' and caches its result.
+     * Failed results are removed from the cache.
+     */
+    public KDeferred getOrCompute(Object k, IFn compute) {
+        long now = ttlNanos == 0 ? 0 : System.nanoTime();
+        Entry e;
+        synchronized (this) {
+            e = entries.get(k);
+            if (e != null) {
+                if (!expired(e, now)) {
+                    hits.increment();
+                    return e.value;
+                }
+                entries.remove(k);
+                evictions.increment();
+            }
+            e = new Entry(KDeferred.create(), now);
+            entries.put(k, e);
+            if (entries.size() > maxEntries) {
+                Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator();
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+        misses.increment();
+
+        KDeferred d = e.value;
+        try {
+            d.chain(compute.invoke(), null);
+        } catch (Throwable t) {
+            d.error(t, null);
+        }
+        if (d.succeeded == 0) {
+            d.listen(null, new RemoveOnError(k, e));
+        }
+        return d;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public IPersistentMap stats() {
+        return PersistentArrayMap.createAsIfByAssoc(new Object[] {
+            KW_HITS, hits.sum(),
+            KW_MISSES, misses.sum(),
+            KW_EVICTIONS, evictions.sum(),
+            KW_SIZE, size(),
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "#knitty/YarnCache[" + key + "]";
+    }
+}
@@ -6,4 +6,9 @@ import clojure.lang.AFn;
 public interface YarnProvider {
     AFn yarn(Keyword k);
     AFn[] ycache();
+
+    // compacted index of known yarns, null means yank uses the global keyword index
+    default YankLayout layout() {
+        return null;
+    }
 }
@@ -1,9 +1,13 @@
 (ns knitty.core
-  (:require [clojure.spec.alpha :as s]
+  (:require [clojure.pprint :as pp]
+            [clojure.spec.alpha :as s]
             [clojure.tools.logging :as log]
             [knitty.deferred :as kd]
             [knitty.impl :as impl]
-            [knitty.trace :as trace]))
+            [knitty.trace :as trace])
+  (:import [clojure.lang ILookup]
+           [java.util.concurrent Executor]
+           [knitty.javaimpl YankBatch YankCtx YankDedupe YankPlan YankResult YarnProvider]))
 
 
 (def ^:dynamic *registry*
@@ -20,6 +24,25 @@
     :async-mode true}))
 
 
+(def ^:dynamic *executors*
+  "Named executors, yarns with `{:executor :name}` metadata are forked to the named executor."
+  {})
+
+
+(def ^:dynamic *deadline*
+  "Deadline of the current yank (as returned by `System/nanoTime`) or nil.
+   Bound for yarns when yank is started with `:deadline` option, nested yanks inherit it."
+  nil)
+
+
+(defn remaining-time
+  "Returns amount of milliseconds left until the deadline of the current yank,
+   or nil when yank has no deadline.  Intended to be called from yarn bodies."
+  []
+  (when-some [d *deadline*]
+    (max 0 (quot (- (long d) (System/nanoTime)) 1000000))))
+
+
 (knitty.javaimpl.KDeferred/setExecutorProviderFn
  (fn get-executor [] *executor*))
 
@@ -32,6 +55,13 @@
    (alter-var-root #'*tracing* (constantly (boolean enable)))))
 
 
+(def virtual-threads-executor
+  "Executor which runs yanks on virtual threads: yarns with `:fork` metadata are started
+   on a new virtual thread, other yarns are run inline.  Cancelled yank interrupts its threads.
+   Platform threads are used when virtual threads are not supported by JVM."
+  knitty.javaimpl.ExecutionPool$VirtualThreadExecutor/INSTANCE)
+
+
 (defn set-executor!
   "Globally set knitty executor."
   ([executor]
@@ -45,18 +75,66 @@
                      executor))))
 
 
+(defn register-executor!
+  "Globally registers named executor.  Yarns declared with `{:executor name}` metadata
+   are run on this executor, their dependents are resumed on the yank executor."
+  [name executor]
+  {:pre [(keyword? name)
+         (instance? java.util.concurrent.Executor executor)]}
+  (alter-var-root #'*executors* assoc name executor))
+
+
+(def ^:private ^:dynamic *bulk-registration*
+  "Volatile with registration fns collected in bulk mode, nil outside of it."
+  nil)
+
+
 (defn register-yarn
   "Registers Yarn into the global registry, do nothing when
    yarn is already registed and no-override flag is true."
   ([yarn]
    (register-yarn yarn false))
   ([yarn no-override]
-   (let [k (impl/yarn-key yarn)]
+   (let [k (impl/yarn-key yarn)
+         reg (if no-override
+               #(if (contains? % k) % (assoc % k yarn))
+               #(assoc % k yarn))]
      (when-not (qualified-keyword? k)
        (throw (ex-info "yarn must be a qualified keyword" {::yarn k, ::class (type k)})))
-     (if no-override
-       (alter-var-root #'*registry* #(if (contains? % k) % (assoc % k yarn)))
-       (alter-var-root #'*registry* assoc k yarn)))))
+     (if-some [b *bulk-registration*]
+       ;; bulk mode - yarn is visible only to the current thread until the block is finished
+       (do
+         (vswap! b conj reg)
+         (set! *registry* (reg *registry*)))
+       (alter-var-root #'*registry* reg)))))
+
+
+(defn with-bulk-registration*
+  "Function version of `with-bulk-registration`."
+  [body-fn]
+  (if *bulk-registration*
+    (body-fn)
+    (let [b (volatile! [])
+          res (binding [*bulk-registration* b
+                        *registry* (impl/begin-bulk-registration *registry*)]
+                (body-fn))]
+      ;; yarns are applied onto the current root (other threads may register yarns meanwhile),
+      ;; registry is not changed when validation fails
+      (alter-var-root #'*registry*
+                      (fn [r]
+                        (impl/end-bulk-registration
+                         (reduce (fn [r reg] (reg r)) (impl/begin-bulk-registration r) @b))))
+      res)))
+
+
+(defmacro with-bulk-registration
+  "Runs body (e.g. loads namespaces with many yarns) registering yarns in bulk mode:
+   unknown dependencies & cycles are checked once for all yarns at the end, then
+   a single validated registry is published.  Yarns may refer (by keyword) to yarns defined later.
+   Until then registered yarns are visible only to the current thread.
+   When validation fails (or body throws) nothing is published.  Nested calls join the outer one."
+  [& body]
+  `(with-bulk-registration* (fn [] ~@body)))
 
 
 (defn- valid-bind-type? [bsym]
@@ -221,6 +299,19 @@
 
   ;; define ::yarn-4 with inputs
   (defyarn yarn-4 {x yarn-3} (str \"Random is\" x))
+
+  ;; define ::yarn-5, body returns an item, items submitted by concurrent yanks
+  ;; within 5ms are coalesced into a single call of `(score-many [item1 item2 ...])`;
+  ;; without `:batch-window-ms` only items of a single `yank-batch` chunk are coalesced
+  ;; (and items which are submitted before the executor runs the flush task)
+  (defyarn ^{:batch-fn score-many, :batch-size 100, :batch-window-ms 5} yarn-5 {x yarn-3} x)
+
+  ;; define ::yarn-6, results are cached across yanks by values of inputs
+  (defyarn ^{:cache {:max-entries 1000, :ttl-ms 60000}} yarn-6 {x yarn-3} (geo-lookup x))
+
+  ;; define ::yarn-7, value is passed unboxed to deps bound with ^long hint
+  ;; (primitive yarn must return a number, not a deferred)
+  (defyarn ^long yarn-7 {^long x yarn-3} (* x 2))
   ```
   "
   {:arglists '([name docstring?]
@@ -239,7 +330,8 @@
      `do
      (when spec `(s/def ~k ~spec))
      `(register-yarn ~y)
-     `(def ~nm ~k))))
+     ;; primitive hint describes value of yarn, not the keyword
+     `(def ~(if (#{'long 'double} (:tag m)) (vary-meta nm dissoc :tag) nm) ~k))))
 
 
 (defmacro defyarn-multi
@@ -291,56 +383,210 @@
 (defmacro ^:private pick-opt [opts key default]
   `(if (contains? ~opts ~key) (~key ~opts) ~default))
 
+
+(defn- yank0* [^ILookup inputs yarns opts]
+  (let [^YankPlan plan (when (instance? YankPlan yarns) yarns)
+        registry (pick-opt opts :registry *registry*)
+        ^Executor executor (pick-opt opts :executor *executor*)
+        ^ILookup executors (pick-opt opts :executors *executors*)
+        preload  (pick-opt opts :preload false)
+        bindings (pick-opt opts :bindings true)
+        tracing  (trace/if-tracing (pick-opt opts :tracing *tracing*))
+        tracer (trace/if-tracing (when tracing (trace/create-tracer inputs (if plan (.-yarns plan) yarns))))
+        max-depth (pick-opt opts :max-recursion-depth nil)
+        timeout (pick-opt opts :deadline nil)
+        deadline (if timeout
+                   (let [d (+ (System/nanoTime) (* 1000000 (long timeout)))
+                         p *deadline*]
+                     (if (and p (neg? (- (long p) d))) p d))
+                   *deadline*)
+        bframe (when bindings
+                 (if timeout
+                   (binding [*deadline* deadline] (clojure.lang.Var/cloneThreadBindingFrame))
+                   (clojure.lang.Var/cloneThreadBindingFrame)))
+        ^YankCtx ctx (if plan
+                     (YankCtx/create inputs plan executor executors tracer (boolean preload) bframe)
+                     (YankCtx/create inputs ^YarnProvider registry executor executors tracer (boolean preload) bframe))
+        _ (when max-depth (.maxRecursionDepth ctx (int max-depth)))
+        _ (when deadline (.deadline ctx (long deadline)))
+        r (if plan
+            (.yank ctx plan)
+            (.yank ctx ^Iterable yarns))]
+    (trace/if-tracing
+     (if tracer
+       (let [r' (kd/bind
+                 r
+                 (fn [x]
+                   (vary-meta x update :knitty/trace conj (trace/capture-trace! tracer)))
+                 (fn [e]
+                   (throw
+                    (ex-info
+                     (ex-message e)
+                     (assoc (ex-data e) :knitty/trace (conj (:knitty/trace (meta inputs))
+                                                            (trace/capture-trace! tracer)))
+                     (ex-cause e)))))]
+         (kd/revoke-to r' r))
+       r)
+     r)))
+
+
+(defn- dedupe-key
+  "Options affecting the computation, only yanks with equal keys are deduped."
+  [opts]
+  (let [bindings (pick-opt opts :bindings true)]
+    [(pick-opt opts :executor *executor*)
+     (pick-opt opts :executors *executors*)
+     (boolean (pick-opt opts :preload false))
+     (pick-opt opts :max-recursion-depth nil)
+     (pick-opt opts :deadline nil)
+     ;; inherited deadline is a binding too
+     (if bindings (get-thread-bindings) *deadline*)]))
+
+
 (defn yank*
   "Computes missing nodes. Always returns deferred resolved into YankResult.
-   YankResult implements ILookup, Seqable, IObj, IKVReduce and IReduceInit.
+   YankResult is a persistent map (also implements IKVReduce and IReduceInit), its lookups
+   go directly to computed nodes.  The view retains the whole yank context (all computed nodes
+   and their deferreds) for as long as it is reachable, deref YankResult to get a concrete
+   (materialized) map when the result is kept for long.  `yank` always returns a materialized map.
+
+   Yarns may be a collection or a plan returned by `compile-yank`.
 
    Optinans are:
     - `:executor` a instance of `java.util.concurrent.Executor` which is used to run code;
+    - `:executors` a map of named executors for yarns with `:executor` metadata (default is `*executors*`);
     - `:preload`  preload all values from input map;
     - `:bindings` flag, indicating that thread-local bindings should be captured and installed for yarns;
     - `:tracing`  flag, do we need to capture tracing (introduce some perfomance penalties);
-    - `:registry` a knitty registry with avalable yarns, usefull for mocking code.
+    - `:registry` a knitty registry with avalable yarns, usefull for mocking code (ignored for plans);
+    - `:dedupe` flag, concurrent yanks with equal inputs, yarns & options (including thread bindings)
+       share a single computation, which is cancelled only when all callers revoke their results,
+       yanks with tracing are not deduped;
+    - `:max-recursion-depth` max nesting of yarns computed recursively on one thread, deeper
+       yarns are forked into executor and start on a fresh stack.  It bounds recursion (stack)
+       depth of long dependency chains, not parallelism: yarns nested no deeper than the limit
+       are computed one by one, independent branches run in parallel only when they are
+       fetched past the limit (`0` forks every yarn); use `^:fork` dependencies for wide shallow graphs;
+    - `:deadline` timeout in milliseconds, yarns are not started after the deadline and
+       unfinished yank is cancelled.  Yarns may check `(remaining-time)`, nested yanks
+       inherit the deadline.
     "
   ([inputs yarns]
    (yank* inputs yarns nil))
+  ([inputs yarns opts]
+   (if (and (pick-opt opts :dedupe false)
+            (not (trace/if-tracing (pick-opt opts :tracing *tracing*))))
+     (YankDedupe/yank inputs yarns
+                      (if (instance? YankPlan yarns) (.-registry ^YankPlan yarns) (pick-opt opts :registry *registry*))
+                      (dedupe-key opts)
+                      #(yank0* inputs yarns opts))
+     (yank0* inputs yarns opts))))
+
+
+(defn compile-yank
+  "Precompiles a plan for yanking `yarns`: resolves yarn keys and collects their dependencies
+   in topological order.  Plan may be passed to `yank*` or `yank` instead of yarns collection.
+   Plans are bound to the registry and cached by the registry itself (with LRU eviction),
+   so it is cheap to call `compile-yank` on each request and plans of replaced registries
+   are collected along with them.  Plans for other registries (e.g. mocked ones) are not cached.
+
+   Options are:
+    - `:registry` a knitty registry with avalable yarns;
+    - `:inline-cells` flag, values of yarns are kept in plain slots of yank context and
+       a deferred is created only when it is needed (async result, error, `^:defer` dependents,
+       yanked yarns), this saves allocations for large graphs of sync yarns;
+    - `:graph` flag, plan also gets a generated function, which fetches nodes needed
+       unconditionally (via sync & defer dependencies) in topological order before the roots,
+       each yarn is fetched from its own call site, so dependencies are found computed and
+       calls are monomorphic.  Nodes behind lazy, maybe, case or fork dependencies are
+       computed on demand as usual.  Compilation uses `eval`, so it is much slower than
+       for plain plans, use it for hot yanks of large graphs.
+  "
+  (^YankPlan [yarns]
+   (compile-yank yarns nil))
+  (^YankPlan [yarns opts]
+   (impl/yank-plan (pick-opt opts :registry *registry*)
+                   yarns
+                   (pick-opt opts :inline-cells false)
+                   (pick-opt opts :graph false))))
+
+
+(defn yarn-cache-stats
+  "Returns map with `:hits`, `:misses`, `:evictions` and `:size` of
+   the cache of yarn declared with `:cache` option, or nil for not cached yarns."
+  ([yarn]
+   (yarn-cache-stats yarn nil))
+  ([yarn opts]
+   (when-some [y (get (pick-opt opts :registry *registry*) yarn)]
+     (when-some [^knitty.javaimpl.YarnCache c (impl/yarn-cache y)]
+       (.stats c)))))
+
+
+(defn compact-registry
+  "Returns registry with the same yarns, whose yanks allocate nodes only for yarns
+   of the registry (instead of tables sized by all yarn keywords ever seen).
+   Compaction is preserved when more yarns are added to the registry."
+  [registry]
+  (impl/compact-registry registry))
+
+
+(defn retire-keywords!
+  "Releases indexes of yarn keywords absent in all of `registries` (default is `*registry*`)
+   and not used as their dependencies, indexes are reused by yarns defined later.
+   Intended for long-running processes which redefine or generate yarns.
+   Indexes are compiled into yarns and resolved by plans, so once any keyword is retired
+   yanks check them: code, plans or registries still referring a retired keyword fail
+   with 'stale index' error instead of reading nodes of another yarn (such plans should be
+   compiled again).  Returns amount of retired keywords."
+  ([]
+   (retire-keywords! [*registry*]))
+  ([registries]
+   (impl/retire-keywords! registries)))
+
+
+(defn yank-batch
+  "Computes the same yarns for each map from `inputs` collection.
+   Returns deferred resolved into vector of maps (in order of inputs).
+   Yarns are resolved only once, inputs are split into chunks which are yanked in parallel.
+   Revoking of returned deferred cancels all unfinished yanks.
+   Items of `:batch-fn` yarns from a chunk are coalesced into a single call,
+   even when executor is direct (`nil`).
+
+   Options are same as for `yank*` (except `:tracing` and `:deadline`, which are not supported), plus:
+    - `:chunk-size` amount of inputs yanked by a single task (default is 64).
+  "
+  ([inputs yarns]
+   (yank-batch inputs yarns nil))
   ([inputs yarns opts]
    (let [registry (pick-opt opts :registry *registry*)
+         plan (compile-yank yarns {:registry registry})
          executor (pick-opt opts :executor *executor*)
+         executors (pick-opt opts :executors *executors*)
          preload  (pick-opt opts :preload false)
          bindings (pick-opt opts :bindings true)
-         tracing  (trace/if-tracing (pick-opt opts :tracing *tracing*))
-         tracer (trace/if-tracing (when tracing (trace/create-tracer inputs yarns)))
-         bframe (when bindings (clojure.lang.Var/cloneThreadBindingFrame))
-         ctx (knitty.javaimpl.YankCtx/create inputs registry executor tracer (boolean preload) bframe)
-         r (.yank ctx yarns)]
-     (trace/if-tracing
-      (if tracer
-        (let [r' (kd/bind
-                  r
-                  (fn [x]
-                    (vary-meta x update :knitty/trace conj (trace/capture-trace! tracer)))
-                  (fn [e]
-                    (throw
-                     (ex-info
-                      (ex-message e)
-                      (assoc (ex-data e) :knitty/trace (conj (:knitty/trace (meta inputs))
-                                                             (trace/capture-trace! tracer)))
-                      (ex-cause e)))))]
-          (kd/revoke-to r' r))
-        r)
-      r))))
+         chunk-size (pick-opt opts :chunk-size 64)
+         max-depth (pick-opt opts :max-recursion-depth -1)
+         bframe (when bindings (clojure.lang.Var/cloneThreadBindingFrame))]
+     (YankBatch/yank (to-array inputs) plan executor executors (boolean preload) bframe (int chunk-size) (int max-depth)))))
 
 
 (defn yr->map
-  "Transforms result of `yank*` into persistent map."
+  "Transforms result of `yank*` into persistent map.
+   YankResult is materialized, so the map does not retain the yank context."
   [yr]
   (cond
-    (instance? knitty.javaimpl.YankResult yr) (.toAssociative ^knitty.javaimpl.YankResult yr)
+    (instance? YankResult yr) (.toAssociative ^YankResult yr)
     (map? yr) yr
     :else (throw (ex-info "invalid yank-result" {:knitty/invalid-result yr}))))
 
 
+(defmethod print-method YankResult [yr w]
+  (print-method @yr w))
+
+(defmethod pp/simple-dispatch YankResult [yr]
+  (pp/simple-dispatch @yr))
+
+
 (defmacro yank
   "Computes and adds missing nodes into 'inputs' map. Always returns deferred."
   ([inputs yarns]
@@ -2,13 +2,13 @@
 (KnittyLoader/touch)
 
 (ns knitty.deferred
-  (:refer-clojure :exclude [future future-call run! while reduce loop])
+  (:refer-clojure :exclude [future future-call run! while reduce loop pmap])
   (:require [clojure.core :as c]
             [clojure.pprint :as pp]
             [clojure.tools.logging :as log]
             [manifold.deferred :as md])
   (:import [java.util.concurrent Executor]
-           [knitty.javaimpl KAwaiter KDeferred]
+           [knitty.javaimpl KAwaiter KDeferred KParallel KTimer]
            [manifold.deferred IDeferred IMutableDeferred]))
 
 (set! *warn-on-reflection* true)
@@ -259,6 +259,29 @@
    (revoke d #(do (error! rd revoke-to-error)
                   (doseq [x rds] (error! x revoke-to-error))))))
 
+(defn timeout!
+  "Errors deferred with `TimeoutException` (or succeeds it with `timeout-value`)
+   when it is not realized within `timeout-ms` milliseconds.  Returns the deferred.
+   Timer is cancelled when the deferred is realized first.
+   Non-knitty deferreds are wrapped, so only returned deferred is realized on timeout.
+   Timeouts are run by a single hashed wheel timer, see `set-timer-tick!`."
+  (^KDeferred [d timeout-ms]
+   (if (nil? timeout-ms)
+     (wrap d)
+     (.timeout (wrap d) (long timeout-ms))))
+  (^KDeferred [d timeout-ms timeout-value]
+   (if (nil? timeout-ms)
+     (wrap d)
+     (.timeout (wrap d) (long timeout-ms) timeout-value))))
+
+(defn sleep
+  "Returns deferred which is realized with `value` (or nil) after `ms` milliseconds.
+   Timer is cancelled when returned deferred is revoked."
+  (^KDeferred [ms]
+   (KDeferred/sleep (long ms) nil))
+  (^KDeferred [ms value]
+   (KDeferred/sleep (long ms) value)))
+
 (definline connect
   "Conveys the realized value of `d-from` into `d-dest`."
   [d-from d-dest]
@@ -356,19 +379,6 @@
 
 ;; ==
 
-(defmacro call-after-all-arr'
-  [ds-arr f]
-  `(let [d# (create)
-         a# ~ds-arr]
-     (when
-      (KAwaiter/awaitArr
-       (fn ~'on-await-iter
-         ([] (.fireValue d# ~f))
-         ([e#] (.fireError d# e#)))
-       a#)
-       (.fireValue d# ~f))
-     d#))
-
 (defn- seq-to-arr ^objects [s]
   (if (instance? java.util.Collection s)
     (.toArray ^java.util.Collection s)
@@ -376,8 +386,7 @@
 
 (defn zip*
   "Similar to `(apply zip vs)`, returns a seq instead of vector."
-  (^KDeferred [vs] (let [a (seq-to-arr vs)]
-                     (call-after-all-arr' a (seq (doto a (KAwaiter/doUnwrapArr))))))
+  (^KDeferred [vs] (KAwaiter/zipArr (seq-to-arr vs) true))
   (^KDeferred [a vs] (zip* (list* a vs)))
   (^KDeferred [a b vs] (zip* (list* a b vs)))
   (^KDeferred [a b c vs] (zip* (list* a b c vs)))
@@ -414,16 +423,7 @@
   (^KDeferred [a b c d e f g h i j k l m n o] (zip-inline a b c d e f g h i j k l m n o))
   (^KDeferred [a b c d e f g h i j k l m n o p] (zip-inline a b c d e f g h i j k l m n o p))
   (^KDeferred [a b c d e f g h i j k l m n o p & z]
-   (bind
-    (zip-inline a b c d e f g h i j k l m n o p)
-    (fn on-await-x [xg]
-      (let [z (seq-to-arr z)]
-        (KAwaiter/doWrapArr z)
-        (call-after-all-arr'
-         z
-         (persistent!
-          (areduce z i ret (transient xg)
-                   (conj! ret (.getRaw ^KDeferred (aget z i)))))))))))
+   (KAwaiter/zipArr (seq-to-arr (list* a b c d e f g h i j k l m n o p z)) false)))
 
 (def ^:private ^java.util.Random alt-rnd
   (java.util.Random.))
@@ -457,17 +457,15 @@
   (^KDeferred [a b c d]
    (doto (create) (alt-in a b c d)))
   (^KDeferred [a b c d & vs]
-   (let [^KDeferred res (create)]
-     (c/reduce
-      (fn [_ x] (.chain res x) (when (.realized res) (reduced nil)))
-      (doto (java.util.ArrayList. (+ (count vs) 4))
-        (.addAll ^clojure.lang.PersistentList vs)
-        (.add a)
-        (.add b)
-        (.add c)
-        (.add d)
-        (java.util.Collections/shuffle)))
-     res)))
+   (KAwaiter/altArr (seq-to-arr (list* a b c d vs)) false)))
+
+(defn alt*
+  "Like `(apply alt vs)`.  When `revoke-losers` is true, deferreds which are
+   not realized (and not claimed) when result is known are revoked with an error."
+  (^KDeferred [vs]
+   (KAwaiter/altArr (seq-to-arr vs) false))
+  (^KDeferred [vs revoke-losers]
+   (KAwaiter/altArr (seq-to-arr vs) (boolean revoke-losers))))
 
 ;; ==
 
@@ -587,14 +585,69 @@
      (fn [_] (.hasNext it))
      (fn [_] nil))))
 
+(defn pmap
+  "Applies async fn `f` to each item of `xs` with at most `n` unrealized results at a time.
+   Returns deferred with vector of results (in order of items).
+   Revoking of returned deferred revokes all in-flight results."
+  ^KDeferred [n f xs]
+  (KParallel/pmap f (iterator xs) (int n) true))
+
+(defn pmap-unordered
+  "Like `pmap`, but results are collected in order of completion."
+  ^KDeferred [n f xs]
+  (KParallel/pmap f (iterator xs) (int n) false))
+
+(defn preduce
+  "Applies async fn `f` to each item of `xs` with at most `n` unrealized results at a time,
+   results are reduced with `rf` in order of completion (`rf` is never called concurrently).
+   Supports early termination with `reduced`, remaining in-flight results are revoked."
+  ^KDeferred [n f rf init xs]
+  (KParallel/preduce f rf init (iterator xs) (int n)))
+
+(defn set-leak-detection!
+  "Globally sets detection mode of unconsumed errors:
+    - `:off` errors are not tracked;
+    - `:full` every error is tracked (default);
+    - integer `n` - randomly sampled 1 of `n` errors is tracked.
+   Leaks are counted per error class (see `leaked-errors`), the first leak of each class
+   is logged with its error, others are logged periodically as a per-class summary."
+  [mode]
+  (KDeferred/setLeakDetection
+   (case mode
+     :off 0
+     :full 1
+     (int mode))))
+
+
+(defn leaked-errors
+  "Returns map of error class to amount of detected leaked errors."
+  []
+  (KDeferred/leakedErrors))
+
+
+(defn set-fork-listeners!
+  "Globally enables firing of large listeners chunks on knitty executor.
+   Deferreds with at least `n` listeners notify them in parallel batches.
+   Zero disables forking (default), callbacks are run on the realizing thread."
+  [n]
+  (KDeferred/setForkChunkSize (int n)))
+
+
+(defn set-timer-tick!
+  "Globally sets tick duration (in milliseconds) of the timer used by `timeout!`, `sleep`
+   and yank deadlines.  Timeouts are fired with tick precision, default is 1ms."
+  [ms]
+  (.setTick (KTimer/getInstance) (long ms) java.util.concurrent.TimeUnit/MILLISECONDS))
+
 ;; ==
 
 (KDeferred/setExceptionLogFn
  (fn log-ex
    [error? e msg]
-   (if error?
-     (log/error e msg)
-     (log/warn e msg))))
+   (cond
+     (nil? e) (if error? (log/error msg) (log/warn msg))
+     error? (log/error e msg)
+     :else (log/warn e msg))))
 
 (defmethod print-method KDeferred [y ^java.io.Writer w]
   (.write w "#knitty/D[")
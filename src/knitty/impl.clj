@@ -1,16 +1,20 @@
 (ns knitty.impl
-  (:require [clojure.set :as set]
-            [knitty.deferred :as kd]
+  (:require [knitty.deferred :as kd]
             [knitty.trace :as t]
             [manifold.executor]
             [manifold.utils])
-  (:import [clojure.lang AFn]
+  (:import [clojure.lang AFn Keyword]
            [java.util Arrays]
            [java.util.concurrent ForkJoinPool ForkJoinPool$ForkJoinWorkerThreadFactory TimeUnit]
            [knitty.javaimpl
             KDeferred
+            KwBitSet
             KwMapper
             YankCtx
+            YankLayout
+            YankPlan
+            YarnBatcher
+            YarnCache
             YarnProvider]))
 
 
@@ -28,27 +32,36 @@
    `(decl-yarn ~(symbol (name ykey)) ~ykey ~deps ~bodyf nil))
   ([fnname ykey deps bodyf]
    `(decl-yarn ~fnname ~ykey ~deps ~bodyf nil))
-  ([fnname ykey deps [_fn [ctx dst] & body] multifn]
-   `(fn
-      ~fnname
-      ([] ~(if (and (keyword? ykey)
-                    (set? deps))
-             (->YarnInfo
-              :knitty/yarn-info
-              ykey
-              deps
-              body
-              multifn)
-             (list
-              `->YarnInfo
-              :knitty/yarn-info
-              ykey
-              deps
-              (list `quote body)
-              multifn)))
-      ([~(vary-meta ctx assoc :tag "knitty.javaimpl.YankCtx")
-        ~(vary-meta dst assoc :tag "knitty.javaimpl.KDeferred")]
-       ~@body))))
+  ([fnname ykey deps bodyf multifn]
+   `(decl-yarn ~fnname ~ykey ~deps ~bodyf ~multifn nil))
+  ([fnname ykey deps [_fn [ctx dst] & body] multifn ext]
+   (let [info (if (and (keyword? ykey)
+                       (set? deps)
+                       (nil? ext))
+                (->YarnInfo
+                 :knitty/yarn-info
+                 ykey
+                 deps
+                 body
+                 multifn)
+                (list
+                 `->YarnInfo
+                 :knitty/yarn-info
+                 ykey
+                 deps
+                 (list `quote body)
+                 multifn))
+         info-sym (gensym "yarn_info")
+         yfn `(fn
+                ~fnname
+                ([] ~(if ext info-sym info))
+                ([~(vary-meta ctx assoc :tag "knitty.javaimpl.YankCtx")
+                  ~(vary-meta dst assoc :tag "knitty.javaimpl.KDeferred")]
+                 ~@body))]
+     (if ext
+       ;; extra fields (e.g. cache) are merged into yarn info
+       `(let [~info-sym (merge ~info ~ext)] ~yfn)
+       yfn))))
 
 
 (definline yarn-deps [y]
@@ -60,17 +73,124 @@
 (definline yarn-multifn [y]
   `(:multifn (~y)))
 
+(definline yarn-cache [y]
+  `(:cache (~y)))
+
+(definline yarn-inline-cell? [y]
+  `(:inline-cell (~y)))
+
 (definline yarn-yank [y ctx d]
   `(~y ~ctx ~d))
 
 (defn- detect-and-throw-yarn-cycle!
-  [root n path yarns]
-  (if (= root n)
-    (throw (ex-info "detected yarns cycle"
-                    {:knitty/yarns-cycle (vec (reverse path))
-                     :knitty/yarn root}))
-    (doseq [p (yarn-deps (yarns n))]
-      (detect-and-throw-yarn-cycle! root p (cons p path) yarns))))
+  [root deps yarns all-deps]
+  ;; only deps reaching the root are followed, so the walk is linear
+  (let [i (KwMapper/registerKeyword root)
+        reach? #(or (= root %)
+                    (when-some [^KwBitSet c (all-deps %)]
+                      (.contains c i)))]
+    (loop [ds deps
+           path (list root)]
+      (when-some [p (first (filter reach? ds))]
+        (if (= root p)
+          (throw (ex-info "detected yarns cycle"
+                          {:knitty/yarns-cycle (vec (reverse (cons p path)))
+                           :knitty/yarn root}))
+          (recur (yarn-deps (yarns p)) (cons p path)))))))
+
+
+(defn- deps-closure ^KwBitSet [all-deps deps]
+  (let [deps (vec deps)]
+    (KwBitSet/closure
+     (into-array Keyword deps)
+     (into-array KwBitSet (map all-deps deps)))))
+
+
+(defn- add-rdeps [rdeps k deps]
+  ;; reverse edges are never removed (deps of multiyarns are not known in advance),
+  ;; stale ones only cause extra recomputation of closures
+  (reduce #(update %1 %2 (fnil conj #{}) k) rdeps deps))
+
+
+(defn- dependents [rdeps roots]
+  ;; roots and all their transitive dependents
+  (loop [queue (into clojure.lang.PersistentQueue/EMPTY roots)
+         seen (set roots)]
+    (if-some [x (peek queue)]
+      (let [ds (remove seen (rdeps x))]
+        (recur (into (pop queue) ds) (into seen ds)))
+      seen)))
+
+
+(defn- update-dependents-closures [all-deps rdeps asmap k]
+  ;; closures of dependents are recomputed in topological order,
+  ;; closure of a node is strictly larger than closures of its deps
+  (let [affected (disj (dependents rdeps [k]) k)]
+    (reduce
+     (fn [ad x]
+       (assoc ad x (deps-closure ad (yarn-deps (asmap x)))))
+     all-deps
+     (sort-by #(count (all-deps %)) affected))))
+
+
+(defn- throw-yarns-cycle! [deps]
+  ;; each node of 'deps' has at least one dep inside, so the walk finds a cycle
+  (loop [x (key (first deps))
+         path []
+         pos {}]
+    (if-some [p (pos x)]
+      (let [c (conj (subvec path p) x)]
+        (throw (ex-info "detected yarns cycle"
+                        {:knitty/yarns-cycle c
+                         :knitty/yarn x})))
+      (recur (first (deps x)) (conj path x) (assoc pos x (count path))))))
+
+
+(defn- topo-sort-yarns [asmap nodes]
+  ;; Kahn's algorithm, deps outside of 'nodes' are considered to be resolved
+  (let [left (java.util.HashMap.)
+        users (java.util.HashMap.)
+        ready (java.util.ArrayDeque.)
+        order (java.util.ArrayList.)]
+    (doseq [x nodes
+            :let [ds (filterv nodes (set (yarn-deps (asmap x))))]]
+      (.put left x (count ds))
+      (when (empty? ds)
+        (.add ready x))
+      (doseq [d ds]
+        (let [^java.util.ArrayList us (or (.get users d)
+                                          (let [us (java.util.ArrayList.)] (.put users d us) us))]
+          (.add us x))))
+    (loop []
+      (when-some [x (.poll ready)]
+        (.add order x)
+        (.remove left x)
+        (doseq [u (.get users x)]
+          (let [c (dec (long (.get left u)))]
+            (.put left u c)
+            (when (zero? c)
+              (.add ready u))))
+        (recur)))
+    (if (.isEmpty left)
+      (vec order)
+      (throw-yarns-cycle!
+       (into {}
+             (for [x (keys left)]
+               [x (filterv #(.containsKey left %) (set (yarn-deps (asmap x))))]))))))
+
+
+(defn- closures-in-order [all-deps asmap nodes]
+  ;; single pass, when 'nodes' are already in topological order (usual for loaded namespaces),
+  ;; returns nil when some node refers to a node which is not processed yet
+  (let [nodes-set (set nodes)]
+    (loop [ad (transient all-deps)
+           done (transient #{})
+           xs (seq nodes)]
+      (if-some [x (first xs)]
+        (let [ds (yarn-deps (asmap x))]
+          (when-not (some #(and (contains? nodes-set %) (not (contains? done %))) ds)
+            (recur (assoc! ad x (deps-closure ad ds)) (conj! done x) (next xs))))
+        (persistent! ad)))))
 
 
 (defn- ensure-array-len ^objects [^objects arr ^long new-size]
@@ -83,11 +203,30 @@
   (Arrays/copyOf arr (alength arr)))
 
 
-(deftype Registry [ycache asmap all-deps]
+(defn- registry-layout [asmap]
+  (delay (YankLayout. (into-array Keyword (keys asmap)))))
+
+
+(def ^:private yank-plans-cache-size 1024)
+
+
+(defn- plans-cache []
+  ;; plans are kept by the registry, so they are collected along with it
+  (delay
+    (java.util.Collections/synchronizedMap
+     (proxy [java.util.LinkedHashMap] [16 (float 0.75) true]
+       (removeEldestEntry [_]
+         (> (.size ^java.util.Map this) (long yank-plans-cache-size)))))))
+
+
+;; 'pending' is a vector of yarns registered in bulk mode, they are not validated yet,
+;; 'plans' is a delayed LRU cache of compiled yank plans
+(deftype Registry [ycache asmap all-deps rdeps ylayout pending plans]
 
   YarnProvider
   (yarn [_ kkw] (get asmap kkw))
   (ycache [_] ycache)
+  (layout [_] (when ylayout @ylayout))
 
   clojure.lang.Seqable
   (seq [_] (seq asmap))
@@ -96,7 +235,7 @@
   (count [_] (count asmap))
   (cons [t x] (.assoc t (yarn-key x) x))
   (equiv [_ o] (and (instance? Registry o) (= asmap (.-asmap ^Registry o))))
-  (empty [_] (Registry. (make-array AFn 32) {} {}))
+  (empty [_] (Registry. (make-array AFn 32) {} {} {} (when ylayout (registry-layout {})) nil (plans-cache)))
 
   clojure.lang.ILookup
   (valAt [_ k] (asmap k))
@@ -111,29 +250,294 @@
       (when (not= k k')
         (throw (ex-info "yarn key mismatch" {:knitty/assoc-key k, :knitty/yarn k'}))))
 
-    (doseq [p (yarn-deps v)]
-      (when-not (contains? asmap p)
-        (throw (ex-info "yarn has unknown dependency" {:knitty/yarn k, :knitty/dependency p}))))
-
-    (let [i (KwMapper/registerKeyword k)
-          max-idx (.maxIndex (KwMapper/getInstance))
-          deps (yarn-deps v)
-          all-deps' (assoc all-deps k (apply set/union deps (map all-deps deps)))]
-
-      (when (contains? (all-deps' k) k)  ;; node depends on itself => deps cycle
-        (doseq [d deps]
-          (detect-and-throw-yarn-cycle! k d [k] asmap)))
-
-      (let [^objects ycache' (if (contains? asmap k)
-                               (array-copy ycache)                      ;; redefined yarn
-                               (ensure-array-len ycache (inc max-idx))  ;; new yarn - reuse cache
-                               )]
-        (YankCtx/putYarnIntoCache ycache' i v)
-        (Registry. ycache' (assoc asmap k v) all-deps')))))
+    (if pending
+
+      ;; bulk mode - yarn is validated later, the yarn cache is owned by the bulk registry,
+      ;; cached yarn is dropped (so lookups fall back to 'asmap')
+      (let [i (KwMapper/registerKeyword k)
+            ycache' (ensure-array-len ycache (inc (.maxIndex (KwMapper/getInstance))))
+            asmap' (assoc asmap k v)]
+        (YankCtx/putYarnIntoCache ycache' i nil)
+        (Registry. ycache' asmap' all-deps rdeps (when ylayout (registry-layout asmap')) (conj pending k) (plans-cache)))
+
+      (do
+        (doseq [p (yarn-deps v)]
+          (when-not (contains? asmap p)
+            (throw (ex-info "yarn has unknown dependency" {:knitty/yarn k, :knitty/dependency p}))))
+
+        (let [i (KwMapper/registerKeyword k)
+              max-idx (.maxIndex (KwMapper/getInstance))
+              deps (yarn-deps v)
+              old (asmap k)
+              closure (deps-closure all-deps deps)]
+
+          (when (.contains closure i)  ;; node depends on itself => deps cycle
+            (detect-and-throw-yarn-cycle! k deps asmap all-deps))
+
+          (let [^objects ycache' (if old
+                                   (array-copy ycache)                      ;; redefined yarn
+                                   (ensure-array-len ycache (inc max-idx))  ;; new yarn - reuse cache
+                                   )
+                asmap' (assoc asmap k v)
+                rdeps' (add-rdeps rdeps k deps)
+                all-deps' (if (and old (not= closure (all-deps k)))
+                            ;; only the subgraph depending on redefined yarn is touched
+                            (update-dependents-closures (assoc all-deps k closure) rdeps' asmap' k)
+                            (assoc all-deps k closure))]
+            (YankCtx/putYarnIntoCache ycache' i v)
+            (Registry. ycache' asmap' all-deps' rdeps' (when ylayout (registry-layout asmap')) nil (plans-cache))))))))
 
 
 (defn create-registry []
-  (Registry. (make-array AFn 32) {} {}))
+  (Registry. (make-array AFn 32) {} {} {} nil nil (plans-cache)))
+
+
+(defn compact-registry [^Registry registry]
+  (let [asmap (.-asmap registry)]
+    (Registry. (.-ycache registry) asmap (.-all-deps registry) (.-rdeps registry) (registry-layout asmap) (.-pending registry) (plans-cache))))
+
+
+(defn begin-bulk-registration
+  "Returns registry which accepts yarns without validation, see `end-bulk-registration`."
+  [registry]
+  (if (and (instance? Registry registry) (nil? (.-pending ^Registry registry)))
+    (let [^Registry r registry]
+      (Registry. (array-copy (.-ycache r)) (.-asmap r) (.-all-deps r) (.-rdeps r) (.-ylayout r) [] (plans-cache)))
+    registry))
+
+
+(defn end-bulk-registration
+  "Validates all yarns registered in bulk mode at once (unknown deps, cycles),
+   computes their closures and returns a regular registry."
+  [registry]
+  (if-not (and (instance? Registry registry) (.-pending ^Registry registry))
+    registry
+    (let [^Registry r registry
+          asmap (.-asmap r)
+          pending (distinct (.-pending r))
+          rdeps (persistent!
+                 (reduce
+                  (fn [m k]
+                    (reduce
+                     (fn [m p]
+                       (when-not (contains? asmap p)
+                         (throw (ex-info "yarn has unknown dependency" {:knitty/yarn k, :knitty/dependency p})))
+                       (assoc! m p (conj (get m p #{}) k)))
+                     m
+                     (yarn-deps (asmap k))))
+                  (transient (.-rdeps r))
+                  pending))
+          ;; redefined yarns may change closures of already registered ones
+          redefined (filter #(contains? (.-all-deps r) %) pending)
+          pending-set (set pending)
+          affected (into pending-set (dependents rdeps redefined))
+          all-deps (or
+                    (when (= (count affected) (count pending-set))
+                      (closures-in-order (.-all-deps r) asmap pending))
+                    (reduce
+                     (fn [ad x] (assoc ad x (deps-closure ad (yarn-deps (asmap x)))))
+                     (.-all-deps r)
+                     (topo-sort-yarns asmap affected)))
+          ycache (ensure-array-len (array-copy (.-ycache r)) (inc (.maxIndex (KwMapper/getInstance))))]
+      (doseq [k pending]
+        (YankCtx/putYarnIntoCache ycache (KwMapper/registerKeyword k) (asmap k)))
+      (Registry. ycache asmap all-deps rdeps (.-ylayout r) nil (plans-cache)))))
+
+
+(defn- registry-all-deps-fn [registry]
+  (if (and (instance? Registry registry) (nil? (.-pending ^Registry registry)))
+    (.-all-deps ^Registry registry)
+    ;; registry without precomputed closures (e.g. mocked one)
+    (let [m (java.util.HashMap.)]
+      (fn all-deps [k]
+        (or (.get m k)
+            (let [ds (yarn-deps (get registry k))
+                  r (into (set ds) (mapcat all-deps) ds)]
+              (.put m k r)
+              r))))))
+
+
+(defn compile-yank-plan
+  ([registry yarns]
+   (compile-yank-plan registry yarns false))
+  ([registry yarns inline-cells]
+   (let [yarns (vec yarns)
+         all-deps (registry-all-deps-fn registry)
+         ks (mapv #(if (keyword? %) % (yarn-key %)) yarns)
+         fs (mapv #(if (keyword? %) (get registry %) %) yarns)
+         _ (doseq [[k f] (map vector ks fs)]
+             (when (nil? f)
+               (throw (IllegalArgumentException. (str "unknown yarn " k)))))
+         ;; adhoc yarns may be absent in the registry
+         roots-deps (zipmap
+                     ks
+                     (for [f fs
+                           :let [ds (yarn-deps f)]]
+                       (into (set ds) (mapcat all-deps) ds)))
+         closure (into (set ks) (mapcat val) roots-deps)
+         ;; closure of a node is strictly larger than closures of its deps,
+         ;; so sorting by closure size gives us a topological order
+         closure-size #(count (or (roots-deps %) (all-deps %)))
+         topo (sort-by closure-size (sort closure))
+         ;; sync yarns keep their values in plain slots, deferreds are created only on demand
+         roots (zipmap ks fs)
+         cells (when inline-cells
+                 (boolean-array
+                  (for [k topo
+                        :let [y (or (roots k) (get registry k))]]
+                    (boolean (and y (yarn-inline-cell? y))))))]
+     (YankPlan.
+      registry
+      yarns
+      (into-array Keyword ks)
+      (into-array AFn fs)
+      (into-array Keyword topo)
+      cells))))
+
+
+(defn- cached-plan [registry k compile-fn]
+  ;; only registries created by knitty keep plans, others are compiled on each call
+  (if (instance? Registry registry)
+    (let [^java.util.Map c @(.-plans ^Registry registry)]
+      (or (.get c k)
+          (let [p (compile-fn)]
+            (.put c k p)
+            p)))
+    (compile-fn)))
+
+
+;; large methods are not jit-compiled, so the driver is split into parts
+(def ^:private graph-driver-part-size 64)
+
+
+(defn- graph-nodes-marker
+  "Returns fn, which marks needed nodes of the graph (in reverse topological order):
+   node is needed when it is a root or a needed node depends on it, inputs are not computed."
+  [ks roots dependencies]
+  (let [n (count ks)
+        pos (zipmap ks (range))
+        ^booleans roots (boolean-array (map #(contains? roots %) ks))
+        ^ints idxs (int-array (map #(KwMapper/registerKeyword %) ks))
+        ^objects kws (object-array ks)
+        ^objects deps (object-array (for [k ks] (int-array (keep pos (dependencies k)))))
+        ;; all nodes are reachable from the roots, array is never modified
+        all (boolean-array n true)]
+    (fn mark-graph-nodes ^booleans [^YankCtx ctx]
+      (if-not (.hasInputs ctx)
+        all
+        (let [flags (aclone roots)]
+          (loop [j (dec n)]
+            (when (>= j 0)
+              (when (aget flags j)
+                (if (.hasInput ctx (aget idxs j) (aget kws j))
+                  (aset flags j false)
+                  (let [^ints ds (aget deps j)]
+                    (dotimes [t (alength ds)]
+                      (aset flags (aget ds t) true)))))
+              (recur (dec j))))
+          flags)))))
+
+
+(defn- emit-graph-driver
+  "Emits fn of YankCtx, which fetches needed nodes `ks` in topological order.
+   Each yarn is fetched from its own call site, so JIT sees only monomorphic calls."
+  [ks]
+  (let [ctx (with-meta 'ctx {:tag (str `YankCtx)})
+        flags (with-meta 'flags {:tag 'booleans})
+        ysym #(with-meta (symbol (str "y" %)) {:tag (str `AFn)})
+        parts (partition-all graph-driver-part-size (range (count ks)))
+        psyms (map #(symbol (str "part" %)) (range (count parts)))]
+    `(fn [~'ys ~'mark]
+       (let [~@(mapcat (fn [j] [(ysym j) `(nth ~'ys ~j)]) (range (count ks)))
+             ~@(interleave
+                psyms
+                (for [js parts]
+                  `(fn [~ctx ~flags]
+                     ~@(for [j js
+                             :let [k (nth ks j)]]
+                         `(when (aget ~flags ~j)
+                            (.fetch ~ctx ~(KwMapper/registerKeyword k) ~k ~(ysym j))))
+                     nil)))]
+         (fn ~'graph-driver [~ctx]
+           (let [~flags (~'mark ~ctx)]
+             ~@(for [p psyms] `(~p ~ctx ~flags))))))))
+
+
+(defn compile-graph-plan
+  "Compiles yank plan with a driver, which fetches nodes needed unconditionally
+   (via sync & defer dependencies) in topological order before the roots."
+  [registry yarns inline-cells]
+  (let [^YankPlan plan (compile-yank-plan registry yarns inline-cells)
+        roots (into {}
+                    (map #(if (keyword? %) [% (get registry %)] [(yarn-key %) %]))
+                    yarns)
+        yarn-of #(or (roots %) (.yarn ^YarnProvider registry %))
+        eager-deps #(:eager-deps ((yarn-of %)))
+        ;; nodes fetched unconditionally by the roots
+        eager (loop [xs (keys roots), seen (transient #{})]
+                (if-let [[x & xs] (seq xs)]
+                  (if (contains? seen x)
+                    (recur xs seen)
+                    (recur (into xs (eager-deps x)) (conj! seen x)))
+                  (persistent! seen)))
+        cells (.-cells plan)
+        ;; inline cells are computed in place by their dependents
+        cell? (if cells
+                (let [^booleans cells cells]
+                  (set (keep-indexed #(when (aget cells %1) %2) (.-closureKeys plan))))
+                #{})
+        ks (filterv #(and (eager %) (not (cell? %))) (.-closureKeys plan))
+        driver ((binding [*ns* (the-ns 'knitty.impl)]
+                  (eval (emit-graph-driver ks)))
+                (mapv yarn-of ks)
+                (graph-nodes-marker ks (set (keys roots)) eager-deps))]
+    (.withDriver plan driver)))
+
+
+(defn yank-plan
+  "Returns compiled yank plan, plans are cached per registry & yarns (with LRU eviction)."
+  (^YankPlan [registry yarns]
+   (yank-plan registry yarns false false))
+  (^YankPlan [registry yarns inline-cells]
+   (yank-plan registry yarns inline-cells false))
+  (^YankPlan [registry yarns inline-cells graph]
+   (if (instance? YankPlan yarns)
+     yarns
+     (let [yarns (vec yarns)]
+       (cached-plan registry
+                    (cond
+                      graph [::graph (boolean inline-cells) yarns]
+                      inline-cells [::inline-cells yarns]
+                      :else yarns)
+                    (if graph
+                      #(compile-graph-plan registry yarns inline-cells)
+                      #(compile-yank-plan registry yarns inline-cells)))))))
+
+
+(defn- registry-keys [registry]
+  (map #(if (map-entry? %) (key %) (yarn-key %)) registry))
+
+
+(defn retire-keywords! [registries]
+  (let [live (into #{}
+                   (mapcat (fn [r] (concat (registry-keys r)
+                                           ;; dependencies may be not registered (e.g. inputs)
+                                           (mapcat #(yarn-deps (if (map-entry? %) (val %) %)) r))))
+                   registries)
+        m (KwMapper/getInstance)
+        dead (into []
+                   (filter #(when-some [k (.resolveByIndex m (int %))]
+                              (not (contains? live k))))
+                   (range 1 (inc (.maxIndex m))))]
+    ;; yarn caches may be shared with dead registries, indexes are going to be reused
+    (doseq [r registries
+            :when (instance? Registry r)
+            :let [^objects ycache (.-ycache ^Registry r)]
+            i dead
+            :when (< (long i) (alength ycache))]
+      (YankCtx/putYarnIntoCache ycache i nil))
+    ;; yank contexts check indexes of plans, layouts & yarns from now on (see `KwMapper/epoch`)
+    (count (filter #(KwMapper/retireKeyword (.resolveByIndex m (int %))) dead))))
 
 
 (defn bind-param-type [ds]
@@ -164,11 +568,19 @@
       (.fetch ~yctx ~ykeyi ~ykey))))
 
 
+(defmacro yarn-get-value
+  "Like `yarn-get-impl`, but returns value of inline cell as is (see `YankCtx/fetchValue`)."
+  [yk ykey yctx]
+  `(do
+     (tracer-> ~yctx .traceDep ~yk ~ykey)
+     (.fetchValue ~yctx ~(KwMapper/registerKeyword ykey) ~ykey)))
+
+
 (defmacro yarn-get-maybe
   [yk ykey yctx]
   `(do
      (tracer-> ~yctx .traceDep ~yk ~ykey)
-     (.pull ~yctx ~(KwMapper/registerKeyword ykey))))
+     (.pull ~yctx ~(KwMapper/registerKeyword ykey) ~ykey)))
 
 
 (deftype Lazy
@@ -226,19 +638,43 @@
         v#))))
 
 
-(defmacro do-pool-fork [ctx & body]
-  `(.fork (.pool ~ctx) (fn* ^:once [] ~@body)))
-
-
 (defmacro pool-run [ctx & body]
   `(.run (.pool ~ctx) (fn* ^:once [] ~@body)))
 
 
 (defmacro yarn-get-fork [yk ykey yctx]
-  `(let [d# (.pull ~yctx ~(KwMapper/registerKeyword ykey))]
-     (when-not (.owned d#)
-       (do-pool-fork ~yctx (yarn-get-impl ~yk ~ykey ~yctx)))
-     d#))
+  `(do
+     (tracer-> ~yctx .traceDep ~yk ~ykey)
+     (.forkFetch ~yctx ~(KwMapper/registerKeyword ykey) ~ykey)))
+
+
+(defn- ykey-index [ykey]
+  (if (keyword? ykey)
+    (KwMapper/registerKeyword ykey)
+    `(KwMapper/registerKeyword ~ykey)))
+
+
+;; forked body computes the node, cancelled pool fails it instead
+(defmacro do-pool-fork [ctx ykey dest & body]
+  `(.forkNode ~ctx (.pool ~ctx) ~(ykey-index ykey) ~ykey ~dest (fn* ^:once [] ~@body)))
+
+
+(defmacro do-pool-fork-on [ctx executor ykey dest & body]
+  `(.forkNode ~ctx (.pool ~ctx ~executor) ~(ykey-index ykey) ~ykey ~dest (fn* ^:once [] ~@body)))
+
+
+(defmacro fire-value
+  "Realizes `dest`, yarns invoked for inline cells have no deferred (`dest` is nil)."
+  [yctx ykey dest x]
+  `(if (nil? ~dest)
+     (.putValue ~yctx ~(ykey-index ykey) ~ykey ~x)
+     (.fireValue ~dest ~x (.-token ~yctx))))
+
+
+(defmacro fire-error [yctx ykey dest e]
+  `(if (nil? ~dest)
+     (.putError ~yctx ~(ykey-index ykey) ~ykey ~e)
+     (.fireError ~dest ~e (.-token ~yctx))))
 
 
 (defmacro connect-result [yctx ykey result dest]
@@ -246,32 +682,103 @@
      (kd/on ~result
             (fn ~'on-val [x#]
               (tracer-> ~yctx .traceFinish ~ykey x# nil true)
-              (pool-run ~yctx (.fireValue ~dest x# (.-token ~yctx))))
+              (pool-run ~yctx (fire-value ~yctx ~ykey ~dest x#)))
             (fn ~'on-err [e#]
               (tracer-> ~yctx .traceFinish ~ykey nil e# true)
-              (pool-run ~yctx (.fireError ~dest e# (.-token ~yctx)))))
+              (pool-run ~yctx (fire-error ~yctx ~ykey ~dest e#))))
      (do
        (tracer-> ~yctx .traceFinish ~ykey ~result nil false)
-       (.fireValue ~dest ~result (.-token ~yctx)))))
+       (fire-value ~yctx ~ykey ~dest ~result))))
+
+
+(defmacro connect-result-hop
+  "Like `connect-result`, but always resumes dependents on the main pool."
+  [yctx ykey result dest]
+  `(if (kd/deferred? ~result)
+     (connect-result ~yctx ~ykey ~result ~dest)
+     (do
+       (tracer-> ~yctx .traceFinish ~ykey ~result nil false)
+       (pool-run ~yctx (fire-value ~yctx ~ykey ~dest ~result)))))
+
+
+(defmacro connect-prim-result
+  "Realizes `dest` with primitive result, value is boxed only when it is read as an object."
+  [yctx ykey ptype hop result dest]
+  (let [[cast fire] (case ptype
+                      :long [`long '.fireLong]
+                      :double [`double '.fireDouble])
+        z (gensym "z")
+        fire-form `(~fire ~dest ~z (.-token ~yctx))]
+    `(let [~z (~cast ~result)]
+       (tracer-> ~yctx .traceFinish ~ykey ~z nil false)
+       ~(if hop `(pool-run ~yctx ~fire-form) fire-form))))
 
 
 (defmacro connect-error [yctx ykey error dest]
   `(do
      (tracer-> ~yctx .traceFinish ~ykey nil ~error false)
-     (.fireError ~dest ~error (.-token ~yctx))))
+     (fire-error ~yctx ~ykey ~dest ~error)))
+
+
+(defmacro connect-error-hop
+  "Like `connect-error`, but always resumes dependents on the main pool."
+  [yctx ykey error dest]
+  `(do
+     (tracer-> ~yctx .traceFinish ~ykey nil ~error false)
+     (pool-run ~yctx (fire-error ~yctx ~ykey ~dest ~error))))
+
+
+(defmacro batch-submit [batcher yctx item]
+  `(let [x# ~item]
+     (if (kd/deferred? x#)
+       (kd/bind x# (fn [y#] (.submit ~batcher y# (.-pool ~yctx))))
+       (.submit ~batcher x# (.-pool ~yctx)))))
+
+
+(def ^:private prim-tags
+  {'long :long
+   'double :double})
 
 
 (defn emit-yarn-impl
   [the-fn-body ykey bind yarn-meta deps]
-  (let [{:keys [fork]} yarn-meta
+  (let [{:keys [fork batch-fn batch-size batch-window-ms cache executor tag]} yarn-meta
         yctx '__yank_ctx
+        dest (with-meta (gensym "d") {:tag (str `KDeferred)})
+
+        ;; yarns & sync deps hinted with ^long or ^double are passed unboxed
+        prim-result (prim-tags tag)
+        _ (when (and prim-result (or batch-fn cache))
+            (throw (ex-info "primitive yarn can't be batched or cached" {:knitty/yarn ykey})))
+        prim-deps (into {}
+                        (for [[ds _] bind
+                              :let [p (prim-tags (:tag (meta ds)))]
+                              :when p]
+                          (if (#{:sync :fork-sync} (bind-param-type ds))
+                            [ds p]
+                            (throw (ex-info "only sync dependencies may be primitive" {:knitty/yarn ykey, :knitty/binding ds})))))
+        bind (for [[ds dk] bind]
+               (clojure.lang.MapEntry/create (if (prim-deps ds) (vary-meta ds dissoc :tag) ds) dk))
+
+        ;; only named executors are routed, yarn body runs on its executor
+        ;; and resumes dependents on the main pool
+        executor (when (keyword? executor) executor)
+        connect-result (if executor `connect-result-hop `connect-result)
+
+        ;; body of a batched yarn computes an item, value is computed by `batch-fn`
+        batcher (when batch-fn (with-meta (gensym "batcher") {:tag (str `YarnBatcher)}))
+        the-fn-body (if batcher
+                      `(batch-submit ~batcher ~yctx ~the-fn-body)
+                      the-fn-body)
 
         yank-deps
         (mapcat identity
                 (for [[ds dk] bind]
                   [ds
                    (case (bind-param-type ds)
-                     :sync       `(yarn-get-impl   ~ykey ~dk ~yctx)
+                     :sync       (if (prim-deps ds)
+                                   `(yarn-get-impl   ~ykey ~dk ~yctx)
+                                   `(yarn-get-value  ~ykey ~dk ~yctx))
                      :defer      `(yarn-get-impl   ~ykey ~dk ~yctx)
                      :fork-sync  `(yarn-get-fork   ~ykey ~dk ~yctx)
                      :fork-defer `(yarn-get-fork   ~ykey ~dk ~yctx)
@@ -284,6 +791,11 @@
               :when (#{:sync :fork-sync} (bind-param-type ds))]
           ds)
 
+        ;; deps fetched by each call of the yarn, used by graph plans
+        eager-deps (set (for [[ds dk] bind
+                              :when (#{:sync :defer} (bind-param-type ds))]
+                          dk))
+
         param-types (set (for [[ds _dk] bind] (let [p (bind-param-type ds)]
                                                 (get {:fork-defer :defer, :fork-sync :sync} p p))))
 
@@ -291,11 +803,29 @@
                           `force-lazy-result
                           `kd/unwrap1)
 
+        ;; sync deps fetched with `yarn-get-value` are values of inline cells or deferreds
+        value-dep? (fn [ds] (and (= :sync (bind-param-type ds)) (not (prim-deps ds))))
+
+        syncs-ready (for [ds sync-deps]
+                      (if (value-dep? ds)
+                        `(YankCtx/isReady ~ds)
+                        `(kd/kd-succeeded? ~ds)))
+
+        syncs-deferreds (for [ds sync-deps]
+                          (if (value-dep? ds)
+                            `(YankCtx/cellDeferred ~ds)
+                            ds))
+
         deref-syncs
         (mapcat identity
                 (for [[ds _dk] bind
                       :when (#{:sync :fork-sync} (bind-param-type ds))]
-                  [ds `(.getRaw ~ds)]))
+                  [ds (case (prim-deps ds)
+                        :long `(.getLong ~ds)
+                        :double `(.getDouble ~ds)
+                        (if (value-dep? ds)
+                          `(YankCtx/cellValue ~ds)
+                          `(.getRaw ~ds)))]))
 
         all-deps-tr (into
                      []
@@ -306,38 +836,72 @@
                          (for [[_ k] dk] [k :case])
                          [[dk pt]])))
 
-        do-maybe-fork (if fork [`do-pool-fork yctx] [`do])
+        do-maybe-fork (if fork [`do-pool-fork yctx ykey dest] [`do])
+
+        ;; cached yarn is a function of its sync deps
+        cache-sym (when cache (with-meta (gensym "cache") {:tag (str `YarnCache)}))
+        _ (when (and cache (not-every? #{:sync :fork-sync} (map (comp bind-param-type key) bind)))
+            (throw (ex-info "cached yarn may have only sync dependencies" {:knitty/yarn ykey})))
+        the-fn-body (if cache-sym
+                      `(.getOrCompute ~cache-sym [~@sync-deps] (fn [] ~the-fn-body))
+                      the-fn-body)
+
+        connect-result-form (if prim-result
+                              `(connect-prim-result ~yctx ~ykey ~prim-result ~(boolean executor) ~the-fn-body ~dest)
+                              `(let [z# (~coerce-deferred ~the-fn-body)]
+                                 (~connect-result ~yctx ~ykey z# ~dest)))
+
+        ;; deps are resolved on the main pool, only the body is forked onto a named executor
+        call-body-form `(let [~@deref-syncs]
+                          (tracer-> ~yctx .traceCall ~ykey)
+                          ~connect-result-form)
+        call-body-form (if executor
+                         `(do-pool-fork-on
+                           ~yctx ~executor ~ykey ~dest
+                           (try
+                             ~call-body-form
+                             (catch Throwable e#
+                               (connect-error-hop ~yctx ~ykey e# ~dest))))
+                         call-body-form)
         ;;
         ]
 
-    `(decl-yarn
-      ~ykey
-      ~(set deps)
-      (fn [~yctx ^KDeferred d#]
-        (tracer-> ~yctx .traceStart ~ykey :yarn ~all-deps-tr)
-        (~@do-maybe-fork
-         (try
-           (let [~@yank-deps]
-             (if (kd/kd-succeeded? ~@sync-deps)
-               (let [~@deref-syncs]
-                 (tracer-> ~yctx .traceCall ~ykey)
-                 (let [z# (~coerce-deferred ~the-fn-body)]
-                   (connect-result ~yctx ~ykey z# d#)))
-               (kd/kd-await!
-                (fn
-                  ([]
-                   (try
-                     (let [~@deref-syncs]
-                       (tracer-> ~yctx .traceCall ~ykey)
-                       (let [z# (~coerce-deferred ~the-fn-body)]
-                         (connect-result ~yctx ~ykey z# d#)))
-                     (catch Throwable e#
-                       (connect-error ~yctx ~ykey e# d#))))
-                  ([e#]
-                   (connect-error ~yctx ~ykey e# d#)))
-                ~@sync-deps)))
-           (catch Throwable e#
-             (connect-error ~yctx ~ykey e# d#))))))))
+    `(let [~@(when batcher
+               [batcher `(YarnBatcher. ~ykey ~batch-fn ~batch-size ~batch-window-ms)])
+           ~@(when cache-sym
+               [cache-sym `(let [c# ~cache]
+                             (YarnCache. ~ykey (:max-entries c#) (:ttl-ms c#)))])]
+      (decl-yarn
+        ~(symbol (name ykey))
+        ~ykey
+        ~(set deps)
+        (fn [~yctx ~dest]
+          (tracer-> ~yctx .traceStart ~ykey :yarn ~all-deps-tr)
+          (~@do-maybe-fork
+           (try
+             (let [~@yank-deps]
+               (if (and ~@syncs-ready)
+                 ~call-body-form
+                 (kd/kd-await!
+                  (.continuation
+                   ~yctx
+                   (fn
+                     ([]
+                      (try
+                        ~call-body-form
+                        (catch Throwable e#
+                          (connect-error ~yctx ~ykey e# ~dest))))
+                     ([e#]
+                      (connect-error ~yctx ~ykey e# ~dest))))
+                  ~@syncs-deferreds)))
+             (catch Throwable e#
+               (connect-error ~yctx ~ykey e# ~dest)))))
+        nil
+        ;; yarns with boxed results may be computed as inline cells
+        ~(cond-> nil
+           cache-sym (assoc :cache cache-sym)
+           (not prim-result) (assoc :inline-cell true)
+           (seq eager-deps) (assoc :eager-deps eager-deps))))))
 
 
 (defn- grab-yarn-bindmap-deps [bm]
@@ -379,7 +943,7 @@
   (let [i (long (KwMapper/registerKeyword k))]
     `(fn ~'yank-route-key [^YankCtx yctx# ^KDeferred _#]
        ;; 'k' should be already yanked by yarn-multi
-       (.getRaw (.pull yctx# ~i)))))
+       (.getRaw (.pull yctx# ~i ~k)))))
 
 
 (defn yarn-multi-deps [multifn route-key]
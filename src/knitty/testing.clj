@@ -14,6 +14,7 @@
   YarnProvider
   (yarn [_ kkw] (or (mock-yarn-fn kkw) (.yarn ^YarnProvider real-registry kkw)))
   (ycache [_] (make-array AFn (.maxIndex (KwMapper/getInstance))))
+  (layout [_] (.layout ^YarnProvider real-registry))
 
   clojure.lang.Seqable
   (seq [_] (map
@@ -209,7 +209,8 @@
 
   (testing :knitty
     (bench :zip-50 (doall @(with-defer (kd/zip* (doall (repeatedly 50 #(f0)))))))
-    (bench :zip-200 (doall @(with-defer (kd/zip* (doall (repeatedly 200 #(f0))))))))
+    (bench :zip-200 (doall @(with-defer (kd/zip* (doall (repeatedly 200 #(f0)))))))
+    (bench :zip-2000 (doall @(with-defer (kd/zip* (doall (repeatedly 2000 #(f0))))))))
   ;;
   )
 
@@ -237,10 +238,31 @@
   (testing :knitty
     (bench :alt-2 @(with-defer (kd/alt (f0) (f0))))
     (bench :alt-3 @(with-defer (kd/alt (f0) (f0) (f0))))
-    (bench :alt-10 @(with-defer (kd/alt (f0) (f0) (f0) (f0) (f0) (f0) (f0) (f0) (f0) (f0)))))
+    (bench :alt-10 @(with-defer (kd/alt (f0) (f0) (f0) (f0) (f0) (f0) (f0) (f0) (f0) (f0))))
+    (bench :alt-200 @(with-defer (kd/alt* (doall (repeatedly 200 #(f0)))))))
   ;;
   )
 
+(deftest ^:benchmark benchmark-pmap
+
+  (testing :knitty
+    (bench :pmap-200-16 @(with-defer (kd/pmap 16 (fn [_] (f0)) (range 200))))
+    (bench :pmap-unordered-200-16 @(with-defer (kd/pmap-unordered 16 (fn [_] (f0)) (range 200))))
+    (bench :preduce-200-16 @(with-defer (kd/preduce 16 (fn [_] (f0)) + 0 (range 200))))))
+
+(deftest ^:benchmark benchmark-timeout
+
+  ;; 50k pending timeouts, each deferred is realized before its timeout
+  (testing :manifold
+    (bench :timeout-50k
+           (let [ds (mapv (fn [_] (md/timeout! (md/deferred) 60000)) (range 50000))]
+             (run! #(md/success! % 1) ds))))
+
+  (testing :knitty
+    (bench :timeout-50k
+           (let [ds (mapv (fn [_] (kd/timeout! (kd/create) 60000)) (range 50000))]
+             (run! #(kd/success! % 1) ds)))))
+
 (deftest ^:benchmark benchmark-loop
 
   (testing :manifold
@@ -344,6 +366,11 @@
                  (dotimes [_ 33]
                    (md/add-listener! d ls))
                  (md/success! d 1)))
+        (bench :add-listener-200
+               (let [d (create-d)]
+                 (dotimes [_ 200]
+                   (md/add-listener! d ls))
+                 (md/success! d 1)))
         (bench :suc-add-listener
                (let [d (create-d)]
                  (md/success! d 1)
@@ -357,5 +384,49 @@
                  (md/success! d 1)
                  @d))))))
 
+;; blocking deref via CountDownLatch, as it was done before parking waiters
+(defn- latch-deref [d]
+  (let [l (java.util.concurrent.CountDownLatch. 1)]
+    (kd/on d #(.countDown l))
+    (.await l)
+    @d))
+
+
+(deftest ^:benchmark bench-blocking-deref
+
+  (let [e (java.util.concurrent.Executors/newSingleThreadExecutor)]
+    (try
+      (doseq [[t deref-d] [[:latch latch-deref]
+                           [:park deref]]]
+        (testing t
+          (bench :realized
+                 (deref-d (kd/wrap-val 1)))
+          (bench :other-thread
+                 (let [d (kd/create)]
+                   (.execute e #(kd/success! d 1))
+                   (deref-d d)))))
+      (finally
+        (.shutdown e)))))
+
+
+(deftest ^:benchmark bench-error-path
+
+  (let [ex (IllegalStateException.)]
+    (try
+      (doseq [mode [:off 100 :full]]
+        (testing mode
+          (kd/set-leak-detection! mode)
+          (bench :error
+                 (kd/error! (kd/create) ex))
+          (bench :wrap-err
+                 (kd/wrap-err ex))
+          (bench :error-consumed
+                 (let [d (kd/create)]
+                   (kd/error! d ex)
+                   (md/error-value d nil)))))
+      (finally
+        (kd/set-leak-detection! :full)))))
+
+
 (comment
   (clojure.test/test-ns *ns*))
@@ -0,0 +1,39 @@
+(ns knitty.bench.kwmapper
+  (:require
+   [clojure.test :as t :refer [deftest testing]]
+   [knitty.test-util :as tu :refer [bench]])
+  (:import
+   [clojure.lang Keyword]
+   [knitty.javaimpl KwMapper]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* true)
+
+(t/use-fixtures :once
+  (t/join-fixtures
+   [(tu/report-benchmark-fixture)]))
+
+
+(defn- register-keywords ^objects [prefix n]
+  (let [ks (object-array (for [i (range n)] (keyword (str "knitty.bench.kwmapper." prefix) (str "k" i))))]
+    (doseq [k ks] (KwMapper/registerKeyword k))
+    ks))
+
+
+(defn- resolve-all [^KwMapper m ^objects ks]
+  (let [n (alength ks)]
+    (loop [i 0, acc 0]
+      (if (< i n)
+        (recur (inc i) (+ acc (.resolveByKeyword m ^Keyword (aget ks i))))
+        acc))))
+
+
+(deftest ^:benchmark benchmark-kwmapper-resolve
+  (doseq [n [1000 10000 100000]]
+    (let [ks (register-keywords (str "hit" n) n)
+          ms (object-array (for [i (range n)] (keyword (str "knitty.bench.kwmapper.miss" n) (str "k" i))))]
+      (testing (str n)
+        (bench :resolve-hit (resolve-all (KwMapper/getInstance) ks))
+        (bench :resolve-miss (resolve-all (KwMapper/getInstance) ms))
+        (bench :register-existing (doseq [k ks] (KwMapper/registerKeyword k)))))))
@@ -0,0 +1,49 @@
+(ns knitty.bench.registry
+  (:require
+   [clojure.test :as t :refer [deftest testing]]
+   [knitty.impl :as impl]
+   [knitty.test-util :as tu :refer [bench]]))
+
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* true)
+
+(t/use-fixtures :once
+  (t/join-fixtures
+   [(tu/report-benchmark-fixture)]))
+
+
+(defn- synthetic-yarn [k deps]
+  ;; registry only needs key & deps of a yarn
+  (let [info (impl/->YarnInfo :knitty/yarn-info k (set deps) nil nil)]
+    (fn
+      ([] info)
+      ([_ _] nil))))
+
+
+(defn- synthetic-yarns [n avg-deps]
+  (let [k #(keyword "knitty.bench.registry" (str "node" %))
+        r (java.util.Random. 42)]
+    (vec
+     (for [i (range n)]
+       (synthetic-yarn
+        (k i)
+        (when (pos? i)
+          (distinct (repeatedly (inc (.nextInt r (* 2 avg-deps))) #(k (.nextInt r i))))))))))
+
+
+(deftest ^:benchmark benchmark-registry
+  (doseq [n [1000 10000]]
+    (let [ys (synthetic-yarns n 3)
+          reg (reduce conj (impl/create-registry) ys)
+          root (first ys)
+          leaf (peek ys)]
+      (testing (str n)
+        (bench :register-all (reduce conj (impl/create-registry) ys))
+        (bench :register-all-bulk (impl/end-bulk-registration
+                                   (reduce conj (impl/begin-bulk-registration (impl/create-registry)) ys)))
+        (bench :reload-all (reduce conj reg ys))
+        (bench :reload-all-bulk (impl/end-bulk-registration
+                                 (reduce conj (impl/begin-bulk-registration reg) ys)))
+        (bench :redefine-root (conj reg root))
+        (bench :redefine-leaf (conj reg leaf))))))
@@ -1,7 +1,7 @@
 (ns knitty.bench.yank
   (:require
    [clojure.test :as t :refer [deftest testing]]
-   [knitty.core :refer [yank yank1 yank*]]
+   [knitty.core :refer [compile-yank yank yank-batch yank1 yank*]]
    [knitty.deferred :as kd]
    [knitty.test-util :as tu :refer [bench build-yarns-graph dotimes-prn
                                     nodes-range]]))
@@ -45,8 +45,34 @@
            @(yank {} [ls]))
     (bench :yank-last1
            @(yank1 {} ls))
+    (bench :yank-last-max-depth
+           @(yank {} [ls] :max-recursion-depth 8))
     (bench :yank-all
            @(yank {} nodes))
+    (bench :yank*-all
+           @(yank* {} nodes))
+    (let [p (compile-yank [ls])]
+      (bench :plan-yank-last
+             @(yank {} p)))
+    (let [p (compile-yank nodes)]
+      (bench :plan-yank-all
+             @(yank {} p)))
+    (let [p (compile-yank [ls] {:inline-cells true})]
+      (bench :plan-cells-yank-last
+             @(yank {} p)))
+    (let [p (compile-yank [ls] {:graph true})]
+      (bench :graph-yank-last
+             @(yank {} p)))
+    (let [p (compile-yank nodes {:graph true})]
+      (bench :graph-yank-all
+             @(yank {} p)))
+    (bench :compile-yank-last
+           @(yank {} (compile-yank [ls])))
+    (let [ins (vec (repeat 100 {}))]
+      (bench :yank-last-x100
+             @(kd/zip* (mapv #(yank % [ls]) ins)))
+      (bench :batch-yank-last-x100
+             @(yank-batch ins [ls])))
     (bench :seq-yank
            @(kd/bind->
              (reduce #(kd/bind-> %1 (yank* [%2])) {} ps)
@@ -113,6 +139,54 @@
   (run-benchs (nodes-range :node 200)))
 
 
+(deftest ^:benchmark sync-nofutures-200-long
+  (build-yarns-graph
+   :ids (range 200)
+   :prefix :node
+   :tag long
+   :deps linear-sync-deps
+   :emit-body (fn [i & xs] `(-> ~i ~@(for [x xs] `(unchecked-add ~x)))))
+  (run-benchs (nodes-range :node 200)))
+
+
+(defn- wide-shallow-deps [c]
+  (if (= c 16) (range 16) []))
+
+
+(defn- emit-spin-body [i & xs]
+  (if (seq xs)
+    `(reduce unchecked-add ~i [~@xs])
+    `(loop [j# 0, a# ~i]
+       (if (< j# 20000)
+         (recur (unchecked-inc j#) (unchecked-add a# (bit-xor a# j#)))
+         a#))))
+
+
+(deftest ^:benchmark wide-shallow-branches
+  ;; 16 independent leaves of a single root, `:max-recursion-depth` forks only yarns deeper than the limit
+  (build-yarns-graph
+   :ids (range 17)
+   :prefix :node
+   :deps wide-shallow-deps
+   :emit-body emit-spin-body)
+  (build-yarns-graph
+   :ids (range 17)
+   :prefix :fnode
+   :deps wide-shallow-deps
+   :fork? #(< % 16)
+   :emit-body emit-spin-body)
+  (bench :sequential
+         @(yank {} [::node16]))
+  (bench :max-depth-0
+         @(yank {} [::node16] :max-recursion-depth 0))
+  (bench :max-depth-1
+         @(yank {} [::node16] :max-recursion-depth 1))
+  (bench :max-depth-8
+         @(yank {} [::node16] :max-recursion-depth 8))
+  (bench :fork-leaves
+         @(yank {} [::fnode16])))
+
+
 (deftest ^:stress check-big-graph
 
   (build-yarns-graph
@@ -234,6 +234,97 @@
     (is (= 1 (deref d 10 :foo)))))
 
 
+(deftest test-blocking-deref
+
+  ;; many parked waiters
+  (let [d  (kd/create)
+        ws (doall (repeatedly 20 #(future [@d (deref d 10000 ::timeout)])))]
+    (Thread/sleep 10)
+    (kd/success! d 1)
+    (is (= (repeat 20 [1 1]) (map #(deref % 10000 ::timeout) ws))))
+
+  ;; timeout
+  (let [d (kd/create)
+        t (System/nanoTime)]
+    (is (= ::timeout (deref d 50 ::timeout)))
+    (is (<= 50 (/ (- (System/nanoTime) t) 1e6))))
+
+  ;; interrupted waiter
+  (let [d (kd/create)
+        r (promise)
+        t (Thread. #(deliver r (try @d (catch InterruptedException _ ::interrupted))))]
+    (.start t)
+    (Thread/sleep 10)
+    (.interrupt t)
+    (is (= ::interrupted (deref r 1000 ::timeout)))))
+
+
+(deftest test-many-listeners
+
+  ;; order of listeners is preserved when they are flattened
+  (let [d (kd/create)
+        r (atom [])]
+    (dotimes [i 100]
+      (kd/on d (fn [_] (swap! r conj i)) nil))
+    (kd/success! d 1)
+    (is (= (reverse (range 100)) @r)))
+
+  ;; cancel one of listeners
+  (let [d  (kd/create)
+        r  (atom #{})
+        ls (mapv (fn [i] (md/listener (fn [_] (swap! r conj i)) nil)) (range 50))]
+    (run! #(md/add-listener! d %) ls)
+    (is (= true (md/cancel-listener! d (nth ls 3))))
+    (is (= true (md/cancel-listener! d (nth ls 42))))
+    (kd/success! d 1)
+    (is (= (disj (set (range 50)) 3 42) @r)))
+
+  ;; concurrent listeners
+  (let [d (kd/create)
+        c (java.util.concurrent.atomic.AtomicLong.)
+        fs (doall (repeatedly 4 #(future (dotimes [_ 1000] (kd/on d (fn [] (.incrementAndGet c)))))))]
+    (run! deref fs)
+    (kd/error! d (ex-info "boom" {}))
+    (is (= 4000 (.get c))))
+
+  ;; forked chunks
+  (try
+    (kd/set-fork-listeners! 32)
+    (let [d (kd/create)
+          l (java.util.concurrent.CountDownLatch. 200)]
+      (dotimes [_ 200]
+        (kd/on d (fn [_] (.countDown l)) nil))
+      (kd/success! d 1)
+      (is (.await l 5 java.util.concurrent.TimeUnit/SECONDS)))
+    (doseq [n [18 20 40]]
+      (kd/set-fork-listeners! n)
+      (let [d (kd/create)
+            l (java.util.concurrent.CountDownLatch. n)
+            ts (java.util.concurrent.ConcurrentHashMap/newKeySet)]
+        (dotimes [_ n]
+          (kd/on d (fn [_] (.add ts (Thread/currentThread)) (.countDown l)) nil))
+        (kd/success! d 1)
+        (is (.await l 5 java.util.concurrent.TimeUnit/SECONDS))
+        (is (some #(not= (Thread/currentThread) %) ts) (str n " listeners"))))
+    (finally
+      (kd/set-fork-listeners! 0))))
+
+
+(deftest test-leak-detection-modes
+  (try
+    (kd/set-leak-detection! :off)
+    (let [leaked #(get (kd/leaked-errors) java.util.concurrent.BrokenBarrierException 0)
+          n0 (leaked)]
+      (dotimes [_ 100]
+        (kd/error! (kd/create) (java.util.concurrent.BrokenBarrierException.)))
+      (System/gc)
+      (Thread/sleep 50)
+      (is (= n0 (leaked))))
+    (is (thrown? IllegalArgumentException (kd/set-leak-detection! -1)))
+    (finally
+      (kd/set-leak-detection! :full))))
+
+
 #_{:clj-kondo/ignore [:loop-without-recur]}
 (deftest test-loop
   ;; body produces a non-deferred value
@@ -271,6 +362,51 @@
 
 
 
+(deftest test-timeout
+
+  (testing "deferred is failed after timeout"
+    (let [t0 (System/nanoTime)
+          d (kd/timeout! (kd/create) 20)]
+      (is (thrown? java.util.concurrent.TimeoutException (deref d 1000 ::timeout)))
+      (is (<= 20 (quot (- (System/nanoTime) t0) 1000000)))))
+
+  (testing "timeout value"
+    (is (= ::x @(kd/timeout! (kd/create) 10 ::x))))
+
+  (testing "deferred is realized before timeout"
+    (let [d (kd/timeout! (kd/create) 20)]
+      (kd/success! d 1)
+      (Thread/sleep 40)
+      (is (= 1 @d)))
+    (is (= 1 @(kd/timeout! (kd/wrap-val 1) 0)))
+    (is (= 1 @(kd/timeout! (kd/future 1) nil))))
+
+  (testing "claimed deferred is not realized by timer"
+    (let [d (kd/create ::token)]
+      (kd/timeout! d 10)
+      (Thread/sleep 40)
+      (is (not (md/realized? d)))))
+
+  (testing "many timeouts"
+    (let [ds (mapv #(kd/timeout! (kd/create) (rem % 50) %) (range 10000))]
+      (is (= (range 10000) @(kd/zip* ds)))))
+
+  (testing "sleep"
+    (let [t0 (System/nanoTime)]
+      (is (= ::x @(kd/sleep 20 ::x)))
+      (is (nil? @(kd/sleep 0)))
+      (is (<= 20 (quot (- (System/nanoTime) t0) 1000000)))))
+
+  (testing "timer tick"
+    (try
+      (let [d (kd/sleep 200 ::x)]
+        (kd/set-timer-tick! 10)
+        (is (= ::x @(kd/sleep 30 ::x)))
+        (is (= ::x (deref d 1000 ::timeout))))
+      (finally
+        (kd/set-timer-tick! 1)))))
+
+
 (deftest test-while
 
   (testing "body produces a non-deferred value"
@@ -375,6 +511,86 @@
         (is (<= (f -) times (f +)))))))
 
 
+(deftest test-alt*
+
+  (is (#{1 2 3} @(kd/alt* [1 2 3])))
+  (is (thrown? IllegalArgumentException (kd/alt* [])))
+
+  (testing "waits for the first realized"
+    (let [ds (vec (repeatedly 100 kd/create))]
+      (let [r (kd/alt* ds)]
+        (is (not (md/realized? r)))
+        (kd/success! (nth ds 42) :x)
+        (is (= :x @r)))))
+
+  (testing "revoke losers"
+    (let [cancelled (atom 0)
+          srcs (vec (repeatedly 10 kd/create))
+          ds (mapv #(kd/revoke % (fn [] (swap! cancelled inc))) srcs)
+          r (kd/alt* ds true)]
+      (kd/success! (nth srcs 3) 1)
+      (is (= 1 @r))
+      (is (= 9 @cancelled))))
+
+  (testing "claimed deferreds are not revoked"
+    (let [d (kd/create)
+          t (kd/claim! d)]
+      (is (= 1 @(kd/alt* [d 1] true)))
+      (is (not (md/realized? d)))
+      (kd/success! d 2 t))))
+
+
+(deftest test-pmap
+
+  (testing "results are in order of items"
+    (is (= (map inc (range 1000)) @(kd/pmap 8 #(kd/future (inc %)) (range 1000))))
+    (is (= [] @(kd/pmap 8 inc [])))
+    (is (= (range 1 101) @(kd/pmap 1 inc (range 100)))))
+
+  (testing "unordered"
+    (is (= (set (range 1 101)) (set @(kd/pmap-unordered 4 #(kd/future (inc %)) (range 100))))))
+
+  (testing "at most n items are in flight"
+    (let [inflight (atom 0)
+          peak (atom 0)
+          f (fn [x]
+              (swap! peak max (swap! inflight inc))
+              (kd/bind (kd/future (Thread/sleep 1) x)
+                       (fn [x] (swap! inflight dec) x)))]
+      (is (= (range 100) @(kd/pmap 5 f (range 100))))
+      (is (<= @peak 5))))
+
+  (testing "error"
+    (let [e (Exception. "boom")]
+      (is (= e @(capture-error (kd/pmap 4 #(if (= % 50) (kd/wrap-err e) %) (range 100)))))
+      (is (= e @(capture-error (kd/pmap 4 #(if (= % 50) (throw e) %) (range 100)))))))
+
+  (testing "revoke in-flight items"
+    (let [cancelled (atom 0)
+          srcs (vec (repeatedly 10 kd/create))
+          r (kd/pmap 3 #(kd/revoke (nth srcs %) (fn [] (swap! cancelled inc))) (range 10))]
+      (kd/error! r (java.util.concurrent.CancellationException.))
+      (is (= 3 @cancelled)))))
+
+
+(deftest test-preduce
+
+  (is (= 4950 @(kd/preduce 4 #(kd/future %) + 0 (range 100))))
+  (is (= 0 @(kd/preduce 4 identity + 0 [])))
+
+  (testing "early termination"
+    (let [cancelled (atom 0)
+          srcs (vec (repeatedly 10 kd/create))
+          r (kd/preduce 4
+                        #(kd/revoke (nth srcs %) (fn [] (swap! cancelled inc)))
+                        (fn [_ x] (reduced x))
+                        nil
+                        (range 10))]
+      (kd/success! (nth srcs 2) :x)
+      (is (= :x @r))
+      (is (= 3 @cancelled)))))
+
+
 (deftest test-join
 
   (is (kd/deferred? (kd/join 1)))
@@ -440,6 +656,26 @@
   )
 
 
+(deftest test-zip-many
+
+  (testing "zip thousands of deferreds"
+    (let [ds (vec (repeatedly 2000 kd/create))
+          r (apply kd/zip ds)
+          r* (kd/zip* (conj ds 1))]
+      (doseq [[i d] (shuffle (map-indexed vector ds))]
+        (kd/success! d i))
+      (is (= (range 2000) @r))
+      (is (vector? @r))
+      (is (= (concat (range 2000) [1]) @r*))))
+
+  (testing "zip with failure"
+    (let [ds (vec (repeatedly 2000 kd/create))
+          e (Exception. "boo")
+          r (kd/zip* ds)]
+      (kd/error! (nth ds 1000) e)
+      (is (= e @(capture-error r))))))
+
+
 (deftest test-zip*
 
   (is (= nil @(kd/zip* nil)))
@@ -506,7 +742,9 @@
       (System/gc)
 
       (let [n 100
-            logs (atom [])]
+            logs (atom [])
+            leaked #(get (kd/leaked-errors) Throwable 0)
+            n0 (leaked)]
         (with-redefs [log/log* (fn [& lm] (swap! logs conj lm))]
 
           (dotimes [_ n]
@@ -520,10 +758,30 @@
 
           (let [tries (atom 0)]
             (while (and (< (swap! tries inc) 1000)
-                        (not= n (count @logs)))
+                        (not= n (- (leaked) n0)))
               (Thread/sleep 1)))
 
-          (is (== n (count @logs))))))))
+          ;; leaks are counted, only the first one of each class is logged
+          (is (== n (- (leaked) n0)))
+          (is (<= (count @logs) 1)))))))
+
+
+(deftest ^:stress test-sampled-error-leak-detection
+  (try
+    (kd/set-leak-detection! 10)
+    (let [leaked #(get (kd/leaked-errors) java.util.concurrent.TimeoutException 0)
+          n0 (leaked)]
+      (with-redefs [log/log* (fn [& _])]
+        (dotimes [_ 10000]
+          (kd/error! (kd/create) (java.util.concurrent.TimeoutException.)))
+        (System/gc)
+        (let [tries (atom 0)]
+          (while (and (< (swap! tries inc) 1000)
+                      (> 500 (- (leaked) n0)))
+            (Thread/sleep 1))))
+      (is (< 500 (- (leaked) n0) 2000)))
+    (finally
+      (kd/set-leak-detection! :full))))
 
 
 (deftest ^:stress test-deferred-chain
@@ -543,5 +801,77 @@
 
 
 
+(defn- call-with-stack-size [stack-size f]
+  (let [p (promise)
+        t (Thread. nil
+                   (fn [] (p (try (f) (catch Throwable e e))))
+                   "knitty-test-small-stack"
+                   (long stack-size))]
+    (.start t)
+    (.join t)
+    (let [r @p]
+      (if (instance? Throwable r) (throw r) r))))
+
+
+(defn- bind-chain [d n f]
+  (loop [d d, i 0]
+    (if (< i n) (recur (kd/bind d f) (unchecked-inc i)) d)))
+
+
+(deftest test-long-bind-chain
+
+  (testing "success is propagated without stack overflow"
+    (is (= 100000
+           (call-with-stack-size
+            (* 256 1024)
+            (fn []
+              (let [d (kd/create)
+                    r (bind-chain d 100000 inc)]
+                (kd/success! d 0)
+                @r))))))
+
+  (testing "error is propagated without stack overflow"
+    (is (= "boom"
+           (call-with-stack-size
+            (* 256 1024)
+            (fn []
+              (let [d (kd/create)
+                    r (-> (bind-chain d 100000 inc)
+                          (kd/bind-err (fn [e] (ex-message e))))]
+                (kd/error! d (ex-info "boom" {}))
+                @r))))))
+
+  (testing "deferreds realized in deep callbacks notify listeners before returning"
+    (doseq [n [63 64 65 200]]
+      (let [d (kd/create)
+            r (kd/bind (bind-chain d n identity)
+                       (fn [_]
+                         (let [a (kd/create)
+                               b (kd/bind a inc)]
+                           (kd/success! a 1)
+                           (deref b 500 ::deadlock))))]
+        (kd/success! d 0)
+        (is (= 2 (deref r 1000 ::timeout)) (str "depth " n)))))
+
+  (testing "listeners of a single deferred are fired in order"
+    (let [d (kd/create)
+          r (atom [])
+          ds (mapv (fn [i] (kd/bind (bind-chain d 100 identity) (fn [_] (swap! r conj i)))) (range 3))]
+      (kd/success! d 1)
+      (run! deref ds)
+      (is (= [2 1 0] @r)))))
+
+
+(deftest ^:stress test-bind-chain-10m
+  (let [n 10000000]
+    (is (= n
+           (call-with-stack-size
+            (* 1024 1024) ;; default thread stack size on x64, tests are run with -Xss16m
+            (fn []
+              (let [d (kd/create)
+                    r (bind-chain d n inc)]
+                (kd/success! d 0)
+                @r)))))))
+
 (comment
   (clojure.test/test-ns *ns*))
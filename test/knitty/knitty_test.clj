@@ -220,6 +220,109 @@
   ))
 
 
+(deftest registry-deps-test
+  (do-defs
+   (defyarn d1 {} 1)
+   (defyarn d2 {x d1} x)
+   (defyarn d3 {x d2} x)
+   (defyarn d4 {x d3} x)
+
+   (testing "transitive deps are tracked"
+     (is (= #{d1 d2 d3} (set ((@#'knitty.impl/registry-all-deps-fn knitty/*registry*) d4)))))
+
+   (defyarn d0 {} 0)
+   (defyarn d2 {x d1, y d0} (+ x y))
+
+   (testing "redefined yarn updates transitive deps of dependents"
+     (is (= #{d0 d1 d2 d3} (set ((@#'knitty.impl/registry-all-deps-fn knitty/*registry*) d4))))
+     (is (= {d0 0, d1 1, d2 1, d3 1, d4 1} @(yank {} [d4]))))
+
+   (testing "cycle is detected"
+     (let [e (try
+               (defyarn d1 {x d4} x)
+               nil
+               (catch clojure.lang.ExceptionInfo e e))]
+       (is (some? e))
+       (is (= [d1 d4 d3 d2 d1] (:knitty/yarns-cycle (ex-data e))))
+       (is (= d1 (:knitty/yarn (ex-data e))))))
+
+   (testing "registry is not changed by failed redefinition"
+     (is (= {d0 0, d1 1, d2 1, d3 1, d4 1} @(yank {} [d4]))))))
+
+
+(defn- call-on-plain-thread
+  "Calls `f` on a new thread, without conveyed bindings."
+  [f]
+  (let [p (promise)]
+    (.start (Thread. #(deliver p (try (f) (catch Throwable e e)))))
+    @p))
+
+
+(deftest bulk-registration-test
+  (do-defs
+   (defyarn b1 {} 1)
+   (defyarn b2 {x b1} (inc x))
+
+   (testing "yarns are validated at the end of the block"
+     (knitty/with-bulk-registration
+       (defyarn b3 {x ::b4} (inc x))
+       (defyarn b4 {x b2} (inc x))
+       (is (= {b1 1, b2 2, b4 3, b3 4} @(yank {} [b3]))))
+     (is (= {b1 1, b2 2, b4 3, b3 4} @(yank {} [b3])))
+     (is (= #{b1 b2 b4} (set ((@#'knitty.impl/registry-all-deps-fn knitty/*registry*) b3)))))
+
+   (testing "redefined yarns update closures of dependents"
+     (knitty/with-bulk-registration
+       (defyarn b0 {} 0)
+       (defyarn b2 {x b1, y ::b0} (+ x y)))
+     (is (= #{b0 b1 b2 b4} (set ((@#'knitty.impl/registry-all-deps-fn knitty/*registry*) b3))))
+     (is (= {b0 0, b1 1, b2 1, b4 2, b3 3} @(yank {} [b3]))))
+
+   (testing "unknown dependency reverts the registry"
+     (let [r knitty/*registry*]
+       (is (thrown-with-msg?
+            clojure.lang.ExceptionInfo #"unknown dependency"
+            (knitty/with-bulk-registration
+              (defyarn b5 {x ::b6} x))))
+       (is (identical? r knitty/*registry*))))
+
+   (testing "cycle is detected"
+     (let [r knitty/*registry*
+           e (try
+               (knitty/with-bulk-registration
+                 (defyarn b6 {x ::b7} x)
+                 (defyarn b7 {x ::b6} x))
+               nil
+               (catch clojure.lang.ExceptionInfo e e))]
+       (is (= "detected yarns cycle" (ex-message e)))
+       (is (#{[b6 b7 b6] [b7 b6 b7]} (:knitty/yarns-cycle (ex-data e))))
+       (is (identical? r knitty/*registry*))))
+
+   (testing "pending yarns are not visible to other threads"
+     (knitty/with-bulk-registration
+       (defyarn b8 {x ::b9} x)
+       (is (contains? knitty/*registry* b8))
+       (is (not (contains? (call-on-plain-thread #(do knitty/*registry*)) b8)))
+       (is (not (contains? (.getRawRoot #'knitty/*registry*) b8)))
+       (defyarn b9 {} 9))
+     (is (= 9 (b8 @(yank {} [b8])))))
+
+   (testing "yarns registered by other threads are kept"
+     (knitty/with-bulk-registration
+       (defyarn b10 {} 10)
+       (call-on-plain-thread #(defyarn b11 {} 11)))
+     (is (= {b10 10, b11 11} @(yank {} [b10 b11]))))
+
+   (testing "failed block keeps yarns registered by other threads"
+     (is (thrown-with-msg?
+          clojure.lang.ExceptionInfo #"unknown dependency"
+          (knitty/with-bulk-registration
+            (defyarn b12 {x ::b13} x)
+            (call-on-plain-thread #(defyarn b14 {} 14)))))
+     (is (not (contains? knitty/*registry* b12)))
+     (is (= 14 (b14 @(yank {} [b14])))))))
+
+
 (deftest cancellation-test
   (do-defs
    (defyarn cnt)
@@ -40,18 +40,19 @@
 
 
 (defn compile-yarn-graph*
-  [ns prefix ids deps-fn emit-body-fn fork?]
+  [ns prefix ids deps-fn emit-body-fn fork? tag]
   (let [n (create-ns ns)]
     (binding [*ns* n]
       (mapv var-get
             (for [i ids]
               (eval
-               (let [nsym #(if (vector? %)
-                             (let [[t i] %]
-                               (with-meta
-                                 (symbol (str prefix i))
-                                 {t true}))
-                             (symbol (str prefix %)))
+               (let [nsym #(cond-> (if (vector? %)
+                                     (let [[t i] %]
+                                       (with-meta
+                                         (symbol (str prefix i))
+                                         {t true}))
+                                     (symbol (str prefix %)))
+                             tag (vary-meta assoc :tag tag))
                      node-xxxx (cond-> (nsym i)
                                  (fork? i) (vary-meta assoc :fork true))
                      deps (map nsym (deps-fn i))]
@@ -61,12 +62,12 @@
 
 
 (defmacro build-yarns-graph
-  [& {:keys [prefix ids deps emit-body fork?]
+  [& {:keys [prefix ids deps emit-body fork? tag]
       :or {prefix "node"
            emit-body (fn [i & _] i)
            fork? `(constantly false)}}]
   (let [g (ns-name *ns*)]
-    `(compile-yarn-graph* '~g (name ~prefix) ~ids ~deps ~emit-body ~fork?)))
+    `(compile-yarn-graph* '~g (name ~prefix) ~ids ~deps ~emit-body ~fork? '~tag)))
 
 
 (defmacro nodes-range
@@ -2,10 +2,12 @@
   {:clj-kondo/ignore [:inline-def]}
   (:require [clojure.template :refer [do-template]]
             [clojure.test :as t :refer [deftest is testing]]
-            [knitty.core :as knitty :refer [defyarn yank yank* yank1]]
+            [knitty.core :as knitty :refer [defyarn defyarn-method defyarn-multi yank yank* yank1]]
             [knitty.deferred :as kd]
             [knitty.test-util :as tu :refer [do-defs]]
-            [manifold.deferred :as md]))
+            [manifold.deferred :as md])
+  (:import [clojure.lang AFn]
+           [knitty.javaimpl ExecutionPool ExecutionPool$Cancellable KwMapper]))
 
 
 (t/use-fixtures :each
@@ -74,6 +76,75 @@
        (is (= {::x 1} (meta (with-meta yr {::x 1}))))
        (is (= @yr @(with-meta yr {::x 1})))))
 
+   (testing "yank* result is a persistent map"
+     (doseq [yarns [[y2] (knitty/compile-yank [y2])]]
+       (let [yr @(yank* {y1 10, :a 1, "b" 2} yarns)
+             m {y1 10, y2 20, :a 1, "b" 2}]
+         (is (map? yr))
+         (is (= m yr))
+         (is (= yr m))
+         (is (.equals ^Object yr m))
+         (is (.equals ^Object m yr))
+         (is (= (hash m) (hash yr)))
+         (is (= (.hashCode ^Object m) (.hashCode ^Object yr)))
+         (is (= 4 (count yr)))
+         (is (= 1 (:a yr) (get yr :a) (yr :a)))
+         (is (= 2 (get yr "b")))
+         (is (contains? yr y2))
+         (is (not (contains? yr y3)))
+         (is (= (set (keys m)) (set (keys yr))))
+         (is (= (sort (vals m)) (sort (vals yr))))
+         (is (= 20 (.get ^java.util.Map yr y2)))
+         (is (= m (into {} yr)))
+         (is (= yr @yr)))))
+
+   (defyarn ym {^:maybe x y3, y y1} (if (kd/deferred? x) y x))
+
+   (testing "yank* result does not contain pulled but not computed nodes"
+     (doseq [yarns [[ym]
+                    (knitty/compile-yank [ym])
+                    (knitty/compile-yank [ym] {:inline-cells true})]]
+       (let [yr @(yank* {} yarns)
+             m {y1 1, ym 1}]
+         (is (= m yr))
+         (is (= 2 (count yr)))
+         (is (nil? (get yr y3)))
+         (is (= ::nope (get yr y3 ::nope)))
+         (is (not (contains? yr y3)))
+         (is (nil? (find yr y3)))
+         (is (= #{y1 ym} (set (keys yr))))
+         (is (= m @yr)))))
+
+   (testing "assoc and dissoc on yank* result"
+     (let [yr @(yank* {y1 10, :a 1} [y2])
+           yr2 (-> yr (assoc :c 3 y2 0) (dissoc y1 :a))]
+       (is (= {y1 10, y2 20, :a 1} yr))
+       (is (= {y2 0, :c 3} yr2))
+       (is (= {y2 0, :c 3} @yr2))
+       (is (= 2 (count yr2)))
+       (is (= 0 (get yr2 y2)))
+       (is (nil? (get yr2 y1)))
+       (is (= ::nope (get yr2 :a ::nope)))
+       (is (= {y2 0, :c 3, :d 4} (conj yr2 [:d 4])))
+       (is (= {y2 0} (dissoc yr2 :c :not-a-key)))
+       (is (= {y1 1, y2 0, :c 3} (assoc yr2 y1 1)))
+       (is (= (hash {y2 0, :c 3}) (hash yr2)))
+       (is (= [[:c 3] [y2 0]] (sort-by (comp str key) (seq yr2))))
+       (is (= 3 (reduce-kv (fn [a _ v] (+ a v)) 0 yr2)))
+       (is (identical? yr (assoc yr y1 10)))))
+
+   (testing "yank returns materialized map"
+     (let [r @(yank {y1 10, :a 1} [y2])]
+       (is (not (instance? knitty.javaimpl.YankResult r)))
+       (is (= {y1 10, y2 20, :a 1} r)))
+     (is (not-any? #(instance? knitty.javaimpl.YankResult %)
+                   @(knitty/yank-batch [{y1 1} {y1 2}] [y2]))))
+
+   (testing "yank* result as inputs"
+     (let [yr @(yank* {y1 10, :a 1} [y2])
+           yr2 @(yank* (assoc yr y2 100) [y3])]
+       (is (= {y1 10, y2 100, y3 200, :a 1} yr2))))
+
    ))
 
 
@@ -121,5 +192,757 @@
    ))
 
 
+(deftest compile-yank-test
+
+  (do-defs
+   (defyarn y1 {} 1)
+   (defyarn y2 {y1 y1} (* y1 2))
+   (defyarn y3 {y2 y2} (* y2 2))
+
+   (testing "plans are cached"
+     (is (identical? (knitty/compile-yank [y2]) (knitty/compile-yank [y2]))))
+
+   (testing "plan contains all dependencies in topological order"
+     (is (= [y1 y2 y3] (vec (.-closureKeys (knitty/compile-yank [y3])))))
+     (is (= [y1 y2] (vec (.-closureKeys (knitty/compile-yank [y2 y1]))))))
+
+   (testing "yank plan"
+     (is (= {y1 1, y2 2, y3 4} @(yank {} (knitty/compile-yank [y3]))))
+     (is (= {y1 10, y2 20} @(yank {y1 10} (knitty/compile-yank [y2]))))
+     (is (== 20 (get @(yank* {y1 10} (knitty/compile-yank [y2])) y2))))
+
+   (testing "plan is invalidated when registry is changed"
+     (let [p (knitty/compile-yank [y3])]
+       (defyarn y3 {y2 y2} (* y2 3))
+       (is (not (identical? p (knitty/compile-yank [y3]))))
+       (is (= {y1 1, y2 2, y3 6} @(yank {} (knitty/compile-yank [y3]))))))
+
+   (testing "cached plans don't retain replaced registries"
+     (let [r (java.lang.ref.WeakReference. knitty/*registry*)]
+       (knitty/compile-yank [y3])
+       (defyarn y3 {y2 y2} (* y2 4))
+       (is (= {y1 1, y2 2, y3 8} @(yank {} (knitty/compile-yank [y3]))))
+       (is (loop [n 0]
+             (System/gc)
+             (cond
+               (nil? (.get r)) true
+               (< n 20) (do (Thread/sleep 10) (recur (inc n)))
+               :else false)))))
+
+   (testing "unknown yarn"
+     (is (thrown? IllegalArgumentException (knitty/compile-yank [::unknown-yarn]))))))
+
+
+(deftest compile-yank-dense-test
+
+  (do-defs
+   (defyarn x1 {} 1)
+   (defyarn x2 {} 2)
+   (defyarn rv {} :a)
+   (defyarn-multi my rv)
+   (defyarn-method my :a {x1 x1} [:a x1])
+
+   (testing "inputs outside of the plan"
+     (let [p (knitty/compile-yank [x1])]
+       (is (= {x1 1, x2 20, ::z 3} @(yank {x2 20, ::z 3} p :preload true)))
+       (is (= 20 (get @(yank* {x2 20} p {:preload true}) x2)))))
+
+   (testing "yank result is iterable"
+     (doseq [ys [[x1 x2] (knitty/compile-yank [x1 x2])]]
+       (let [r @(yank* {::z 3} ys)
+             m {x1 1, x2 2, ::z 3}]
+         (is (= m (into {} (seq r))))
+         (is (= m (into {} (iterator-seq (.iterator ^Iterable r)))))
+         (is (= m (reduce conj {} r)))
+         (is (= m (reduce-kv assoc {} r))))
+       (is (= {x1 1, x2 2} (into {} (seq @(yank* {} ys)))))))
+
+   (testing "nodes outside of the plan"
+     (let [p (knitty/compile-yank [my])]
+       (defyarn-method my :b {x2 x2} [:b x2])
+       (is (= [:a 1] (my @(yank {} p))))
+       (is (= {rv :b, my [:b 2], x2 2} @(yank {rv :b} p)))
+       (is (= {rv :b, my [:b 30], x2 30} @(yank {rv :b, x2 30} p :preload true)))))))
+
+
+(deftest compile-yank-inline-cells-test
+
+  (do-defs
+   (defyarn y1 {} 1)
+   (defyarn y2 {y1 y1} (* y1 2))
+   (defyarn ya {y1 y1} (kd/future (+ y1 10)))
+   (defyarn y3 {y2 y2, ya ya} (+ y2 ya))
+   (defyarn yd {^:defer y2 y2} (kd/bind y2 inc))
+   (defyarn yl {^:lazy y2 y2} (kd/bind @y2 inc))
+   (defyarn yf {^:fork y2 y2} (inc y2))
+   (defyarn yn {y1 y1} (when (pos? y1) nil))
+   (defyarn ye {y1 y1} (if (neg? y1) (throw (ex-info "negative" {})) y1))
+   (defyarn ^long yp {y2 y2} (inc y2))
+   (defyarn y4 {y3 y3, yd yd, yl yl, yf yf, yn yn, ye ye, yp yp} [y3 yd yl yf yn ye yp])
+
+   (testing "plans with inline cells are cached separately"
+     (is (identical? (knitty/compile-yank [y4] {:inline-cells true})
+                     (knitty/compile-yank [y4] {:inline-cells true})))
+     (is (not (identical? (knitty/compile-yank [y4] {:inline-cells true})
+                          (knitty/compile-yank [y4])))))
+
+   (testing "only yarns with boxed results are computed in cells"
+     (let [p (knitty/compile-yank [y4] {:inline-cells true})
+           cs (zipmap (.-closureKeys p) (.-cells p))]
+       (is (true? (cs y2)))
+       (is (false? (cs yp)))))
+
+   (testing "same results as with deferreds"
+     (let [p0 (knitty/compile-yank [y4])
+           p1 (knitty/compile-yank [y4] {:inline-cells true})]
+       (doseq [inputs [{} {y1 5} {y2 7} {ya 0}]]
+         (is (= @(yank inputs p0) @(yank inputs p1)))
+         (is (= @(yank inputs p0 :preload true) @(yank inputs p1 :preload true))))
+       (is (= [13 3 3 3 nil 1 3] (y4 @(yank {} p1))))))
+
+   (testing "errors"
+     (let [p (knitty/compile-yank [y4] {:inline-cells true})]
+       (let [e (try @(yank {y1 -1} p) (catch Exception e e))]
+         (is (= "negative" (ex-message (ex-cause e))))
+         (is (= [y4] (:knitty/yarns (ex-data e))))
+         (is (= -2 (get-in (ex-data e) [:knitty/result y2]))))))
+
+   (testing "yank result"
+     (let [r @(yank* {} (knitty/compile-yank [y4] {:inline-cells true}))]
+       (is (= 2 (get r y2)))
+       (is (= nil (get r yn ::none)))
+       (is (= 3 (yp r)))))
+
+   (testing "yank-batch"
+     (let [p (knitty/compile-yank [y3] {:inline-cells true})]
+       (is (= [{y1 1, y2 2, ya 11, y3 13} {y1 2, y2 4, ya 12, y3 16}]
+              @(knitty/yank-batch [{} {y1 2}] p)))))))
+
+
+(deftest compile-yank-graph-test
+
+  (do-defs
+   (def calls (atom []))
+   (defyarn y1 {} (swap! calls conj ::y1) 1)
+   (defyarn y2 {y1 y1} (swap! calls conj ::y2) (md/future (* y1 2)))
+   (defyarn y3 {^:defer y2 y2, y1 y1} (swap! calls conj ::y3) (kd/bind y2 #(+ % y1)))
+   (defyarn z1 {} (swap! calls conj ::z1) 100)
+   (defyarn z2 {^:lazy z1 z1, y3 y3} (swap! calls conj ::z2) (if (> y3 100) @z1 y3))
+   (defyarn z3 {z2 z2} (swap! calls conj ::z3) (inc z2))
+   (defyarn fail {y1 y1} (throw (ex-info "boom" {::y1 y1})))
+
+   (let [graph #(knitty/compile-yank % {:graph true})]
+
+     (testing "graph plans are cached separately"
+       (is (identical? (graph [z3]) (graph [z3])))
+       (is (not (identical? (knitty/compile-yank [z3]) (graph [z3]))))
+       (is (not (identical? (graph [z3]) (knitty/compile-yank [z3] {:graph true, :inline-cells true})))))
+
+     (testing "same results as yank"
+       (doseq [[inputs yarns] [[{} [z3]]
+                               [{} [y2 z2]]
+                               [{y1 10} [z3]]
+                               [{y3 200} [z3]]
+                               [{z2 0} [z3 y1]]]]
+         (is (= @(yank inputs yarns)
+                @(yank inputs (graph yarns))
+                @(yank inputs (knitty/compile-yank yarns {:graph true, :inline-cells true}))))))
+
+     (testing "nodes are computed in topological order, lazy deps on demand"
+       (reset! calls [])
+       (is (= {y1 1, y2 2, y3 3, z2 3, z3 4} @(yank {} (graph [z3]))))
+       (is (= [::y1 ::y2 ::y3 ::z2 ::z3] @calls))
+       (reset! calls [])
+       (is (= 101 (z3 @(yank {y3 200} (graph [z3])))))
+       (is (= [::z1 ::z2 ::z3] (sort @calls))))
+
+     (testing "adhoc yarns"
+       (let [y4 (knitty/yarn ::y4 {y3 y3} (* y3 10))]
+         (is (= 30 (::y4 @(yank {} (graph [y4])))))))
+
+     (testing "errors"
+       (is (thrown-with-msg? Exception #"failed to yank" @(yank {} (graph [fail]))))
+       (is (= {fail 2} @(yank {fail 2} (graph [fail])))))
+
+     (testing "batch yank"
+       (is (= [4 31] (mapv z3 @(knitty/yank-batch [{} {y1 10}] (graph [z3]))))))
+
+     (testing "large graph"
+       (tu/build-yarns-graph
+        :ids (range 200)
+        :prefix :gnode
+        :deps #(cond-> [] (pos? %) (conj (dec %)) (> % 10) (conj (- % 10)))
+        :emit-body (fn [i & xs] `(tu/mfut (reduce + ~i [~@xs]) 7)))
+       (let [ns (tu/nodes-range :gnode 200)]
+         (is (= @(yank {} [(last ns)])
+                @(yank {} (graph [(last ns)]))))
+         (is (= @(yank {(nth ns 100) 0} ns)
+                @(yank {(nth ns 100) 0} (graph ns)))))))))
+
+
+(deftest yank-batch-test
+
+  (do-defs
+   (defyarn y1 {} 1)
+   (defyarn y2 {y1 y1} (* y1 2))
+   (defyarn y3 {y2 y2} (kd/future (* y2 2)))
+   (defyarn yf {y1 y1} (if (neg? y1) (throw (ex-info "negative" {})) y1))
+   (defyarn cnt)
+   (defyarn yw {y1 y1} (kd/future (Thread/sleep 10) y1))
+   (defyarn yc {c cnt, _ yw} (swap! c inc))
+
+   (testing "results are in order of inputs"
+     (is (= [] @(knitty/yank-batch [] [y2])))
+     (is (= [{y1 1, y2 2}] @(knitty/yank-batch [{}] [y2])))
+     (is (= (for [i (range 100)] {y1 i, y2 (* i 2), y3 (* i 4)})
+            @(knitty/yank-batch (for [i (range 100)] {y1 i}) [y3] {:chunk-size 7}))))
+
+   (testing "same results as yank"
+     (let [ins (for [i (range 20)] {y1 i, ::x i})]
+       (is (= (mapv #(deref (yank % [y3 y2])) ins)
+              @(knitty/yank-batch ins [y3 y2])))))
+
+   (testing "failed item fails whole batch"
+     (let [r (knitty/yank-batch (for [i (range 50)] {y1 (- 25 i)}) [yf] {:chunk-size 5})]
+       (is (thrown-with-msg? Exception #"failed to yank" @r))
+       (is (knitty/yank-error? (md/error-value r nil)))))
+
+   (testing "batch cancellation"
+     (let [c (atom 0)
+           r (knitty/yank-batch (for [i (range 50)] {y1 i, cnt c}) [yc] {:chunk-size 5})]
+       (kd/error! r (java.util.concurrent.CancellationException.))
+       (is (thrown? java.util.concurrent.CancellationException @r))
+       (Thread/sleep 50)
+       (is (zero? @c))))))
+
+
+(deftest batch-fn-test
+
+  (do-defs
+   ;; stub for a remote backend with bulk endpoint
+   (def backend-calls (atom []))
+   (defn backend-score [xs]
+     (swap! backend-calls conj xs)
+     (mapv #(* 10 %) xs))
+   (defn backend-score-async [xs]
+     (kd/future (backend-score xs)))
+
+   (defyarn y1 {} 1)
+   (defyarn ^{:batch-fn backend-score} score {x y1} x)
+   (defyarn ^{:batch-fn backend-score-async, :batch-size 10} ascore {x y1} (kd/future (inc x)))
+   (defyarn ^{:batch-fn (fn [xs] (butlast xs))} bad-score {x y1} x)
+
+   (testing "single yank"
+     (reset! backend-calls [])
+     (is (= {y1 1, score 10} @(yank {} [score])))
+     (is (= [[1]] @backend-calls)))
+
+   (testing "calls are coalesced in batch yank"
+     (reset! backend-calls [])
+     (is (= (for [i (range 100)] {y1 i, score (* 10 i)})
+            @(knitty/yank-batch (for [i (range 100)] {y1 i}) [score] {:chunk-size 100})))
+     (is (= [(range 100)] @backend-calls))
+
+     (reset! backend-calls [])
+     (is (= (for [i (range 100)] {y1 i, score (* 10 i)})
+            @(knitty/yank-batch (for [i (range 100)] {y1 i}) [score] {:chunk-size 10})))
+     (is (<= (count @backend-calls) 10))
+     (is (= (range 100) (sort (apply concat @backend-calls)))))
+
+   (testing "async items and batch-fn, batch size"
+     (reset! backend-calls [])
+     (is (= (for [i (range 50)] {y1 i, ascore (* 10 (inc i))})
+            @(knitty/yank-batch (for [i (range 50)] {y1 i}) [ascore])))
+     (is (every? #(<= (count %) 10) @backend-calls))
+     (is (= (range 1 51) (sort (apply concat @backend-calls)))))
+
+   (defyarn ^{:batch-fn backend-score, :batch-window-ms 50} wscore {x y1} x)
+   (defyarn ^{:batch-fn backend-score-async, :batch-window-ms 50} wascore {x y1} (tu/slow-future 5 x))
+
+   (testing "items from concurrent yanks are coalesced within the window"
+     (doseq [y [wscore wascore]]
+       (reset! backend-calls [])
+       (is (= (for [i (range 50)] {y1 i, y (* 10 i)})
+              @(kd/zip* (for [i (range 50)] (yank {y1 i} [y])))))
+       (is (= (range 50) (sort (apply concat @backend-calls))))
+       (is (< (count @backend-calls) 5) (str y))))
+
+   (testing "invalid result of batch-fn"
+     (is (thrown-with-msg?
+          Exception #"failed to yank"
+          @(knitty/yank-batch (for [i (range 5)] {y1 i}) [bad-score]))))))
+
+
+(deftest yarn-cache-test
+
+  (do-defs
+   (def calls (atom 0))
+   (defyarn y1 {} 1)
+   (defyarn ^{:cache {:max-entries 3}} cy {x y1} (swap! calls inc) (* x 10))
+   (defyarn ^{:cache {:ttl-ms 50}} cy-ttl {x y1} (swap! calls inc) x)
+   (defyarn ^{:cache {}} cy-async {x y1} (swap! calls inc) (tu/slow-future 20 x))
+   (defyarn ^{:cache {}} cy-fail {x y1} (swap! calls inc) (throw (ex-info "fail" {})))
+
+   (testing "hits and misses"
+     (reset! calls 0)
+     (is (= 10 (cy @(yank {y1 1} [cy]))))
+     (is (= 10 (cy @(yank {y1 1} [cy]))))
+     (is (= 20 (cy @(yank {y1 2} [cy]))))
+     (is (= 2 @calls))
+     (is (= {:hits 1, :misses 2, :evictions 0, :size 2} (knitty/yarn-cache-stats cy))))
+
+   (testing "size is bounded"
+     (doseq [i (range 10)]
+       @(yank {y1 i} [cy]))
+     (is (= 3 (:size (knitty/yarn-cache-stats cy))))
+     (is (= 7 (:evictions (knitty/yarn-cache-stats cy)))))
+
+   (testing "ttl"
+     (reset! calls 0)
+     @(yank {} [cy-ttl])
+     @(yank {} [cy-ttl])
+     (is (= 1 @calls))
+     (Thread/sleep 60)
+     @(yank {} [cy-ttl])
+     (is (= 2 @calls)))
+
+   (testing "in-flight misses are coalesced"
+     (reset! calls 0)
+     (is (= (repeat 10 {y1 1, cy-async 1})
+            @(kd/zip* (repeatedly 10 #(yank {} [cy-async])))))
+     (is (= 1 @calls)))
+
+   (testing "errors are not cached"
+     (reset! calls 0)
+     (is (thrown? Exception @(yank {} [cy-fail])))
+     (is (thrown? Exception @(yank {} [cy-fail])))
+     (is (= 2 @calls))
+     (is (= 0 (:size (knitty/yarn-cache-stats cy-fail)))))
+
+   (testing "not cached yarn"
+     (is (nil? (knitty/yarn-cache-stats y1))))
+
+   (testing "only sync dependencies"
+     (is (thrown? Exception
+                  (eval `(knitty/yarn ::bad-cache {~(with-meta 'x {:defer true}) ~y1} x)))))))
+
+
+(deftest yank-dedupe-test
+
+  (do-defs
+   (def calls (atom 0))
+   (defyarn y1 {} 1)
+   (defyarn slow {x y1} (swap! calls inc) (tu/slow-future 50 x))
+   (defyarn after-slow {x slow} (swap! calls inc) x)
+
+   (testing "concurrent yanks share computation"
+     (reset! calls 0)
+     (let [rs (doall (repeatedly 10 #(yank {y1 1} [slow] :dedupe true)))]
+       (is (= (repeat 10 {y1 1, slow 1}) @(kd/zip* rs)))
+       (is (= 1 @calls))))
+
+   (testing "different inputs are not deduped"
+     (reset! calls 0)
+     @(kd/zip* [(yank* {y1 1} [slow] {:dedupe true})
+                (yank* {y1 2} [slow] {:dedupe true})
+                (yank* {y1 1} [y1 slow] {:dedupe true})])
+     (is (= 3 @calls)))
+
+   (testing "yanks with different options are not deduped"
+     (reset! calls 0)
+     @(kd/zip* [(yank* {y1 1} [slow] {:dedupe true, :deadline 1000})
+                (yank* {y1 1} [slow] {:dedupe true, :deadline 2000})
+                (yank* {y1 1} [slow] {:dedupe true, :max-recursion-depth 4})
+                (yank* {y1 1} [slow] {:dedupe true, :preload true})])
+     (is (= 4 @calls))
+
+     (reset! calls 0)
+     @(kd/zip* [(yank* {y1 1} [slow] {:dedupe true, :deadline 1000})
+                (yank* {y1 1} [slow] {:dedupe true, :deadline 1000})])
+     (is (= 1 @calls)))
+
+   (testing "yanks with different bindings are not deduped"
+     (reset! calls 0)
+     @(kd/zip* [(binding [knitty/*deadline* (+ (System/nanoTime) 1000000000)]
+                  (yank* {y1 1} [slow] {:dedupe true}))
+                (yank* {y1 1} [slow] {:dedupe true})])
+     (is (= 2 @calls)))
+
+   (testing "entry is released after completion"
+     (reset! calls 0)
+     @(yank {y1 1} [slow] :dedupe true)
+     @(yank {y1 1} [slow] :dedupe true)
+     (is (= 2 @calls)))
+
+   (testing "yank is cancelled only when all callers revoke"
+     (reset! calls 0)
+     (let [r1 (yank* {y1 1} [after-slow] {:dedupe true})
+           r2 (yank* {y1 1} [after-slow] {:dedupe true})]
+       (kd/error! r1 (java.util.concurrent.CancellationException.))
+       (is (= 1 (after-slow @r2)))
+       (is (= 2 @calls)))
+
+     (reset! calls 0)
+     (let [r1 (yank* {y1 1} [after-slow] {:dedupe true})
+           r2 (yank* {y1 1} [after-slow] {:dedupe true})]
+       (kd/error! r1 (java.util.concurrent.CancellationException.))
+       (kd/error! r2 (java.util.concurrent.CancellationException.))
+       (Thread/sleep 100)
+       (is (thrown? java.util.concurrent.CancellationException @r2))
+       (is (> 2 @calls))))))
+
+
+(deftest virtual-threads-executor-test
+
+  (do-defs
+   (def started (atom 0))
+   (def interrupted (atom 0))
+   (defyarn y1 {} (Thread/currentThread))
+   (defyarn ^:fork y2 {} (Thread/currentThread))
+   (defyarn ^:fork blocking {}
+     (swap! started inc)
+     (try
+       (Thread/sleep 5000)
+       (catch InterruptedException _
+         (swap! interrupted inc)))
+     1)
+   (defyarn after-blocking {x blocking} x)
+   (def self-yank (promise))
+   (def self-interrupted (promise))
+   (defyarn ^:fork self-cancel {}
+     (kd/error! @self-yank (java.util.concurrent.CancellationException.))
+     (deliver self-interrupted (Thread/interrupted)))
+   (defyarn nested {} [(Thread/currentThread)
+                       (y1 @(yank {} [y1] :executor knitty/virtual-threads-executor))])
+   (def batch-started (promise))
+   (defyarn vin {} 0)
+   (defyarn vkey {x vin} (when (= x 1) (deliver batch-started true)) x)
+   (defyarn ^{:batch-fn #(mapv inc %), :batch-window-ms 200} vbatched {x vkey} x)
+
+   (testing "yarns are computed"
+     (let [r @(yank {} [y1 y2] :executor knitty/virtual-threads-executor)
+           t (Thread/currentThread)]
+       (is (not= t (y1 r)))
+       (is (not= t (y2 r)))
+       (is (not= (y1 r) (y2 r)))))
+
+   (testing "cancelled yank interrupts threads"
+     (let [r (yank* {} [after-blocking] {:executor knitty/virtual-threads-executor})]
+       (while (zero? @started) (Thread/sleep 1))
+       (kd/error! r (java.util.concurrent.CancellationException.))
+       (Thread/sleep 100)
+       (is (= 1 @interrupted))))
+
+   (testing "thread cancelling the yank is not interrupted"
+     (deliver self-yank (yank* {} [self-cancel] {:executor knitty/virtual-threads-executor}))
+     (is (false? (deref self-interrupted 1000 ::timeout))))
+
+   (testing "batch started by a cancelled yank is flushed for other yanks"
+     (let [r1 (yank* {vin 1} [vbatched] {:executor knitty/virtual-threads-executor})]
+       (deref batch-started 1000 ::timeout)
+       (Thread/sleep 20)
+       (let [r2 (yank* {vin 2} [vbatched] {:executor knitty/virtual-threads-executor})]
+         (Thread/sleep 20)
+         (kd/error! r1 (java.util.concurrent.CancellationException.))
+         (is (= 3 (vbatched (deref r2 1000 ::timeout)))))))
+
+   (testing "task forked into a cancelled pool is cancelled, not dropped"
+     (let [p (ExecutionPool/adapt knitty/virtual-threads-executor)
+           c (promise)]
+       (.cancel p)
+       (.fork p ^AFn (proxy [AFn ExecutionPool$Cancellable] []
+                       (invoke [] (deliver c ::run))
+                       (cancel [e] (deliver c e))))
+       (is (instance? java.util.concurrent.CancellationException (deref c 1000 ::timeout)))))
+
+   (testing "nested yank is not inlined into threads of another pool"
+     (let [[t0 t1] (nested @(yank {} [nested] :executor knitty/virtual-threads-executor))]
+       (is (not= t0 t1))))))
+
+
 (comment
   (clojure.test/test-ns *ns*))
+
+(deftest named-executors-test
+
+  (do-defs
+   (def io (java.util.concurrent.Executors/newCachedThreadPool
+            (reify java.util.concurrent.ThreadFactory
+              (newThread [_ r] (doto (Thread. ^Runnable r "knitty-io-test") (.setDaemon true))))))
+   (defyarn ^{:executor :io} io-yarn {} (.getName (Thread/currentThread)))
+   (defyarn after-io {x io-yarn} [x (.getName (Thread/currentThread))])
+   (defyarn ^{:executor :unknown} other-yarn {} (.getName (Thread/currentThread)))
+
+   (testing "yarn is run on named executor"
+     (let [[x y] (after-io @(yank {} [after-io] :executors {:io io}))]
+       (is (= "knitty-io-test" x))
+       (is (not= "knitty-io-test" y))))
+
+   (testing "global executors"
+     (binding [knitty/*executors* {:io io}]
+       (is (= "knitty-io-test" (io-yarn @(yank {} [io-yarn]))))))
+
+   (testing "unknown executor falls back to main pool"
+     (is (not= "knitty-io-test" (other-yarn @(yank {} [other-yarn] :executors {:io io})))))
+
+   (defyarn io-dep {} (.getName (Thread/currentThread)))
+   (defyarn ^{:executor :io} io-with-dep {x io-dep} [x (.getName (Thread/currentThread))])
+
+   (testing "deps are resolved on main pool, only body is run on named executor"
+     (let [[x y] (io-with-dep @(yank {} [io-with-dep] :executors {:io io}))]
+       (is (not= "knitty-io-test" x))
+       (is (= "knitty-io-test" y))))
+
+   (defyarn ^{:executor :io} io-fail {} (Thread/sleep 50) (throw (ex-info "io failed" {})))
+   (defyarn after-io-fail {^:defer x io-fail} (kd/bind-err x (fn [_] (.getName (Thread/currentThread)))))
+
+   (testing "errors resume dependents on main pool"
+     (is (not= "knitty-io-test" (after-io-fail @(yank {} [after-io-fail] :executors {:io io})))))
+
+   (.shutdown ^java.util.concurrent.ExecutorService io)))
+
+
+(deftest max-recursion-depth-test
+
+  (do-defs
+   (def stack-depth (atom 0))
+   (tu/build-yarns-graph
+    :ids (range 300)
+    :prefix :chain
+    :deps #(if (pos? %) [(dec %)] [])
+    :emit-body (fn [i & xs]
+                 `(do
+                    (swap! stack-depth max (alength (.getStackTrace (Thread/currentThread))))
+                    (reduce + ~i [~@xs]))))
+   (def last-node (last (tu/nodes-range :chain 300)))
+
+   (testing "deep chain is computed with bounded stack"
+     (let [unbounded (do (reset! stack-depth 0)
+                         (is (= 44850 (last-node @(yank {} [last-node]))))
+                         @stack-depth)
+           bounded (do (reset! stack-depth 0)
+                       (is (= 44850 (last-node @(yank {} [last-node] :max-recursion-depth 4))))
+                       @stack-depth)]
+       (is (< (* 4 bounded) unbounded))))
+
+   (testing "batch yank"
+     (is (= [44850 44850]
+            (mapv last-node @(knitty/yank-batch [{} {}] [last-node] {:max-recursion-depth 4})))))
+
+   (def fjp (java.util.concurrent.ForkJoinPool. 4))
+   (def latch (java.util.concurrent.CountDownLatch. 2))
+   (defyarn branch-a {} (.countDown latch) (.await latch 5 java.util.concurrent.TimeUnit/SECONDS))
+   (defyarn branch-b {} (.countDown latch) (.await latch 5 java.util.concurrent.TimeUnit/SECONDS))
+   (defyarn both {a branch-a, b branch-b} [a b])
+
+   (testing "independent branches are computed in parallel"
+     (is (= [true true] (both @(yank {} [both] :executor fjp :max-recursion-depth 0)))))
+
+   (def latch1 (java.util.concurrent.CountDownLatch. 2))
+   (defyarn leaf-a {} (.countDown latch1) (.await latch1 5 java.util.concurrent.TimeUnit/SECONDS))
+   (defyarn leaf-b {} (.countDown latch1) (.await latch1 5 java.util.concurrent.TimeUnit/SECONDS))
+   (defyarn leaves {a leaf-a, b leaf-b} [a b])
+   (defyarn top {x leaves} x)
+
+   (testing "independent branches past the limit are computed in parallel"
+     ;; `top` & `leaves` are computed inline, leaves are fetched at depth 2 and forked
+     (is (= [true true] (top @(yank {} [top] :executor fjp :max-recursion-depth 2)))))
+
+   (def latch2 (java.util.concurrent.CountDownLatch. 2))
+   (defyarn seq-a {} (.countDown latch2) (.await latch2 200 java.util.concurrent.TimeUnit/MILLISECONDS))
+   (defyarn seq-b {} (.countDown latch2) (.await latch2 200 java.util.concurrent.TimeUnit/MILLISECONDS))
+   (defyarn seqs {a seq-a, b seq-b} [a b])
+
+   (testing "branches within the limit are computed one by one"
+     (is (= [false true] (seqs @(yank {} [seqs] :executor fjp :max-recursion-depth 4)))))
+
+   (.shutdown ^java.util.concurrent.ExecutorService fjp)))
+
+
+(deftest primitive-yarns-test
+
+  (do-defs
+   (defyarn ^long counter {} 41)
+   (defyarn ^long next-counter {^long x counter} (inc x))
+   (defyarn ^double score {^long x next-counter} (/ x 4.0))
+   (defyarn boxed {^double s score, c counter} [s c])
+   (defyarn ^long from-deferred {} (kd/future 1))
+
+   (testing "primitive values are boxed in result"
+     (let [r @(yank {} [boxed next-counter])]
+       (is (= 42 (next-counter r)))
+       (is (instance? Long (next-counter r)))
+       (is (= [10.5 41] (boxed r)))))
+
+   (testing "primitive deps are read from inputs"
+     (is (= 11 (next-counter @(yank {counter 10} [next-counter])))))
+
+   (testing "var holds yarn keyword"
+     (is (= ::counter counter)))
+
+   (testing "primitive yarn must not return deferred"
+     (is (thrown? Exception @(yank {} [from-deferred]))))
+
+   (testing "primitive deferreds"
+     (let [d (kd/create)]
+       (.fireLong d 10 nil)
+       (is (= 10 (.getLong d)))
+       (is (= 10.0 (.getDouble d)))
+       (is (= 10 @d))
+       (is (identical? (.getRaw d) (.getRaw d))))
+     (let [d (kd/create)
+           r (promise)]
+       (kd/on d #(deliver r %) nil)
+       (.fireDouble d 1.5 nil)
+       (is (= 1.5 @r))
+       (is (= 1.5 (.getDouble d)))))))
+
+
+(deftest deadline-test
+
+  (do-defs
+   (def calls (atom 0))
+   (defyarn slow {} (tu/slow-future 200 1))
+   (defyarn after-slow {x slow} (swap! calls inc) x)
+   (defyarn fast {} 1)
+   (defyarn budget {} (knitty/remaining-time))
+   (defyarn budget-after-slow {_ slow} (knitty/remaining-time))
+   (defyarn nested {} (kd/bind (yank {} [budget]) budget))
+
+   (testing "yank is cancelled after the deadline"
+     (reset! calls 0)
+     (let [r (yank {} [after-slow] :deadline 20)
+           t0 (System/nanoTime)]
+       (is (thrown? java.util.concurrent.CancellationException @r))
+       (is (> 150 (quot (- (System/nanoTime) t0) 1000000)))
+       (Thread/sleep 250)
+       (is (= 0 @calls))))
+
+   (testing "yank finished before the deadline"
+     (is (= 1 (fast @(yank {} [fast] :deadline 1000)))))
+
+   (testing "deadline of finished yank is cancelled"
+     (let [x (Object.)
+           r (java.lang.ref.WeakReference. x)]
+       (is (= 1 (fast @(yank {::x x} [fast] :deadline 100000))))
+       (is (loop [n 0]
+             (System/gc)
+             (cond
+               (nil? (.get r)) true
+               (< n 20) (do (Thread/sleep 10) (recur (inc n)))
+               :else false)))))
+
+   (testing "remaining time is available for yarns"
+     (is (nil? (budget @(yank {} [budget]))))
+     (is (<= 900 (budget @(yank {} [budget] :deadline 1000)) 1000))
+     (is (<= 500 (budget-after-slow @(yank {} [budget-after-slow] :deadline 1000)) 800)))
+
+   (testing "nested yanks inherit the deadline"
+     (is (<= 900 (nested @(yank {} [nested] :deadline 1000)) 1000))
+     (is (<= 900 (nested @(yank {} [nested] :deadline 100000)) 100000))
+     (binding [knitty/*deadline* (+ (System/nanoTime) 500000000)]
+       (is (<= 400 (budget @(yank {} [budget] :deadline 100000)) 500))))))
+
+
+(deftest kwmapper-test
+  (let [m0 (KwMapper/getInstance)
+        ks (mapv #(keyword "knitty.yank-test.kwmapper" (str "k" %)) (range 20000))
+        ids (mapv #(KwMapper/registerKeyword %) ks)
+        m1 (KwMapper/getInstance)]
+    (try
+      (testing "ids are unique and stable"
+        (is (= (count ks) (count (set ids))))
+        (is (every? #(<= 1 % (.maxIndex m1)) ids))
+        (is (= ids (mapv #(KwMapper/registerKeyword %) ks))))
+
+      (testing "keywords are resolved after resizes"
+        (is (= ids (mapv #(.resolveByKeyword m1 %) ks)))
+        (is (= ks (mapv #(.resolveByIndex m1 %) ids))))
+
+      (testing "unknown keywords are not resolved"
+        (is (= -1 (.resolveByKeyword m1 :knitty.yank-test.kwmapper/unknown)))
+        (is (nil? (.resolveByIndex m1 (inc (.maxIndex m1))))))
+
+      (testing "snapshot does not see keywords registered later"
+        (let [new-ids (filter #(> (long %) (.maxIndex m0)) ids)]
+          (is (seq new-ids))
+          (is (every? #(nil? (.resolveByIndex m0 %)) new-ids))))
+
+      (testing "ids of retired keywords are reused"
+        (let [k (peek ks)
+              i (peek ids)]
+          (is (true? (KwMapper/retireKeyword k)))
+          (is (false? (KwMapper/retireKeyword k)))
+          (is (= -1 (.resolveByKeyword (KwMapper/getInstance) k)))
+          (is (nil? (.resolveByIndex (KwMapper/getInstance) i)))
+          (is (= i (KwMapper/registerKeyword :knitty.yank-test.kwmapper/reused)))
+          (is (= (pop ids) (mapv #(.resolveByKeyword (KwMapper/getInstance) %) (pop ks))))))
+      (finally
+        ;; keywords are retired, so they don't stay in the index for the rest of the suite
+        (run! #(KwMapper/retireKeyword %) (conj ks :knitty.yank-test.kwmapper/reused))))))
+
+
+(deftest retire-keywords-test
+
+  (do-defs
+   (defyarn ra {} 1)
+   (defyarn rb {ra ra} (inc ra))
+   (def base knitty/*registry*)
+   (defyarn rc {rb rb} (inc rb))
+   (def plan-rc (knitty/compile-yank [rc]))
+   (def adhoc-rc (knitty/yarn ::rd {x rc} (inc x)))
+   (def retired (atom 0))
+
+   (testing "keywords absent in live registries are retired"
+     (let [m (KwMapper/getInstance)]
+       (reset! retired (knitty/retire-keywords! [base]))
+       (is (pos? @retired))
+       (is (= -1 (.resolveByKeyword (KwMapper/getInstance) ::rc)))
+       (is (<= (.maxIndex (KwMapper/getInstance)) (.maxIndex m)))
+       (is (< (.epoch m) (.epoch (KwMapper/getInstance))))
+       (is (= (.resolveByKeyword m ::rb) (.resolveByKeyword (KwMapper/getInstance) ::rb)))))
+
+   (testing "live yarns are still computed"
+     (is (= {ra 1, rb 2} @(yank {} [rb] :registry base)))
+     (is (= {ra 1, rb 2} @(yank {} (knitty/compile-yank [rb] {:registry base})))))
+
+   (testing "stale indexes are rejected once they are reused"
+     ;; freed indexes are reused by new keywords
+     (dotimes [i @retired]
+       (KwMapper/registerKeyword (keyword "knitty.yank-test.retired" (str "k" i))))
+     (is (thrown-with-msg? Exception #"stale index" @(yank {} plan-rc)))
+     ;; yarn itself is registered again, but it still refers the old index of its dependency
+     (KwMapper/registerKeyword ::rd)
+     (is (thrown-with-msg? Exception #"stale index"
+                           (try @(yank {} [adhoc-rc] :registry base)
+                                (catch Exception e (throw (or (ex-cause e) e)))))))
+
+   (testing "retired keyword may be registered again"
+     (alter-var-root #'knitty/*registry* (constantly base))
+     (defyarn rc {rb rb} (* 10 rb))
+     (is (= {ra 1, rb 2, rc 20} @(yank {} [rc]))))))
+
+
+(deftest compact-registry-test
+
+  (do-defs
+   (defyarn ca {} 1)
+   (defyarn cb {ca ca} (inc ca))
+   (def compacted (knitty/compact-registry knitty/*registry*))
+   (defyarn cc {cb cb} (inc cb))
+
+   (testing "yank with compacted registry"
+     (is (some? (.layout ^knitty.javaimpl.YarnProvider compacted)))
+     (is (= {ca 1, cb 2} @(yank {} [cb] :registry compacted)))
+     (is (= {ca 10, cb 11} @(yank {ca 10} [cb] :registry compacted)))
+     (is (= 2 (cb @(yank* {} [cb] {:registry compacted})))))
+
+   (testing "adhoc yarns outside of compacted registry"
+     (is (= {ca 1, cb 2, ::cx 3}
+            @(yank {} [(knitty/yarn ::cx {x cb} (inc x))] :registry compacted))))
+
+   (testing "compaction is kept when yarns are added"
+     (let [r (assoc compacted ::cc (get knitty/*registry* ::cc))]
+       (is (some? (.layout ^knitty.javaimpl.YarnProvider r)))
+       (is (= 3 (.size (.layout ^knitty.javaimpl.YarnProvider r))))
+       (is (= {ca 1, cb 2, cc 3} @(yank {} [cc] :registry r)))))))